@@ -0,0 +1,171 @@
+package wtf.lua.rockblock.calendarserver;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * AccessLog writes a line of JSON for every response (or a random sample of them) to a file or to standard output.
+ * Entries are passed to a background thread through a {@link LogRing} and written in batches, entries that arrive while the
+ * ring is full are dropped instead of holding up the event loops.
+ *
+ * <p>
+ * Copyright (C) 2020 Lua MacDougall
+ * <br/><br/>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <br/><br/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * <br/><br/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see &lt;https://www.gnu.org/licenses/&gt;.
+ * </p>
+ *
+ * @author Lua MacDougall &lt;luawhat@gmail.com&gt;
+ */
+public final class AccessLog implements AutoCloseable {
+  private static final Logger log = LoggerFactory.getLogger(AccessLog.class);
+
+  // Number of entries written between flushes (at most)
+  private static final int batchSize = 512;
+
+  /**
+   * Entry describes a single response.
+   */
+  public static final class Entry {
+    /** Time (in milliseconds since 1970) that the response was written at. */
+    public final long time;
+    /** IP address of the client, or "null" if it is unknown. */
+    public final String client;
+    /** HTTP method of the request. */
+    public final String method;
+    /** Path (and query) of the request. */
+    public final String path;
+    /** HTTP status code of the response. */
+    public final int status;
+    /** Length of the response body in bytes, or "-1" if it is unknown (event streams). */
+    public final long bytes;
+    /** Time in nanoseconds from receiving the request until the response was written. */
+    public final long latency;
+    /** Cache status (as in the "Server-Timing" header), or "null" if the response has no calendar data. */
+    public final String cache;
+
+    /**
+     * Create a new Entry instance.
+     * @param time    {@link Entry#time}
+     * @param client  {@link Entry#client}
+     * @param method  {@link Entry#method}
+     * @param path    {@link Entry#path}
+     * @param status  {@link Entry#status}
+     * @param bytes   {@link Entry#bytes}
+     * @param latency {@link Entry#latency}
+     * @param cache   {@link Entry#cache}
+     */
+    public Entry(long time, String client, String method, String path, int status, long bytes, long latency, String cache) {
+      this.time = time;
+      this.client = client;
+      this.method = method;
+      this.path = path;
+      this.status = status;
+      this.bytes = bytes;
+      this.latency = latency;
+      this.cache = cache;
+    }
+  }
+
+  private final boolean standardOutput;
+  private final JsonGenerator generator;
+
+  private final LogRing<Entry> ring;
+  // Dropped entry count that has already been reported, only used on the background thread
+  private long reportedDropped;
+
+  /**
+   * Create a new AccessLog instance and start its background thread.
+   * @param path File to append the log to, or "-" for standard output.
+   * @param capacity Number of entries that may wait to be written at once.
+   * @throws IOException If the file can't be opened.
+   */
+  public AccessLog(String path, int capacity) throws IOException {
+    standardOutput = path.equals("-");
+    var output = standardOutput ? new FileOutputStream(FileDescriptor.out) : new FileOutputStream(path, true);
+    generator = BodyFormat.JSON.getMapper().getFactory().createGenerator(new BufferedOutputStream(output, 65536));
+    generator.setRootValueSeparator(null);
+
+    ring = new LogRing<>("access-log", capacity, batchSize, this::write);
+  }
+
+  /**
+   * Decide at random if a response should be logged.
+   * @param sampleRate Share of responses that are logged, between "0" and "1".
+   * @return Boolean indicating if the response should be logged.
+   */
+  public boolean isSampled(double sampleRate) {
+    return sampleRate >= 1 || (sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate);
+  }
+
+  /**
+   * Queue an entry to be written, without waiting.
+   * @param entry Entry to write.
+   */
+  public void log(Entry entry) {
+    ring.offer(entry);
+  }
+
+  /**
+   * Write the entries that are still waiting and close the file.
+   */
+  @Override
+  public void close() {
+    ring.close();
+    try {
+      // Standard output stays open for everyone else
+      if (standardOutput) generator.flush();
+      else generator.close();
+    } catch (IOException error) {
+      log.warn("Failed to close the access log", error);
+    }
+  }
+
+  private void write(List<Entry> entries) {
+    try {
+      for (var entry : entries) {
+        generator.writeStartObject();
+        generator.writeStringField("time", Instant.ofEpochMilli(entry.time).toString());
+        generator.writeStringField("client", entry.client);
+        generator.writeStringField("method", entry.method);
+        generator.writeStringField("path", entry.path);
+        generator.writeNumberField("status", entry.status);
+        if (entry.bytes >= 0) generator.writeNumberField("bytes", entry.bytes);
+        else generator.writeNullField("bytes");
+        generator.writeNumberField("latency", entry.latency / 1e6);
+        generator.writeStringField("cache", entry.cache);
+        generator.writeEndObject();
+        generator.writeRaw('\n');
+      }
+      generator.flush();
+    } catch (IOException error) {
+      log.warn("Failed to write the access log", error);
+    }
+
+    var dropped = ring.getDropped();
+    if (dropped > reportedDropped) {
+      log.warn("Dropped {} access log entries, the access log can't keep up", dropped - reportedDropped);
+      reportedDropped = dropped;
+    }
+  }
+}
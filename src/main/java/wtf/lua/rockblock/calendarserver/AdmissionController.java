@@ -0,0 +1,149 @@
+package wtf.lua.rockblock.calendarserver;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * AdmissionController decides if a client may request an uncached month, which costs a download from the calendar source and a new cache entry.
+ * Every client (IP address) has a token bucket that refills at {@link Config#admissionClientRate} up to {@link Config#admissionClientBurst},
+ * and all clients together share a bucket that refills at {@link Config#admissionGlobalRate}, each uncached month takes a token from both.
+ * Client buckets are spread across independently locked stripes, each holding a bounded number of the most recently seen clients.
+ *
+ * <p>
+ * Copyright (C) 2020 Lua MacDougall
+ * <br/><br/>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <br/><br/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * <br/><br/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see &lt;https://www.gnu.org/licenses/&gt;.
+ * </p>
+ *
+ * @author Lua MacDougall &lt;luawhat@gmail.com&gt;
+ */
+public final class AdmissionController {
+  // Number of stripes the client buckets are spread across, requests from clients in different stripes never wait for each other
+  private static final int stripeCount = 64;
+
+  /**
+   * Bucket holds the tokens of a token bucket, it must be synchronized on (or only used by one thread at a time).
+   */
+  private static final class Bucket {
+    private double tokens;
+    private long refilled;
+
+    public Bucket(double tokens, long now) {
+      this.tokens = tokens;
+      refilled = now;
+    }
+
+    // Refill the tokens gained since the last call (at "rate" tokens per second, up to "burst"), then try to take one
+    public boolean take(double rate, double burst, long now) {
+      tokens = Math.min(burst, tokens + (now - refilled) * rate / 1e9);
+      refilled = now;
+      if (tokens < 1) return false;
+      tokens--;
+      return true;
+    }
+
+    public void refund(double burst) {
+      tokens = Math.min(burst, tokens + 1);
+    }
+  }
+
+  // Client buckets, least recently seen clients first (per stripe)
+  private final List<Map<InetAddress, Bucket>> stripes;
+  private final Bucket globalBucket;
+
+  private volatile Config config;
+
+  /**
+   * Create a new AdmissionController instance.
+   * @param config Application configuration.
+   */
+  public AdmissionController(Config config) {
+    this.config = config;
+
+    stripes = new ArrayList<>(stripeCount);
+    for (int i = 0; i < stripeCount; i++) {
+      stripes.add(new LinkedHashMap<>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<InetAddress, Bucket> eldest) {
+          return size() > Math.max(AdmissionController.this.config.admissionClients / stripeCount, 1);
+        }
+      });
+    }
+
+    globalBucket = new Bucket(config.admissionGlobalRate, System.nanoTime());
+  }
+
+  /**
+   * Apply a reloaded configuration, keeping the tokens of every bucket.
+   * @param newConfig New application configuration.
+   */
+  public void reconfigure(Config newConfig) {
+    config = newConfig;
+  }
+
+  /**
+   * Try to admit a request for an uncached month, taking a token from the client's bucket and from the global bucket.
+   * Should only be called for requests that would otherwise start an update, cache hits are never limited.
+   * @param client Address of the client, or "null" if it is unknown (only the global limit applies then).
+   * @return Boolean indicating if the request was admitted, if not the client should be told to try again later.
+   */
+  public boolean admit(InetAddress client) {
+    var config = this.config;
+    var now = System.nanoTime();
+
+    // Clients without a burst of their own may request a second's worth of months at once
+    var clientBurst = config.admissionClientBurst > 0 ? config.admissionClientBurst : config.admissionClientRate;
+
+    Bucket clientBucket = null;
+    if (config.admissionClientRate > 0 && client != null) {
+      var stripe = getStripe(client);
+      synchronized (stripe) {
+        clientBucket = stripe.get(client);
+        if (clientBucket == null) {
+          clientBucket = new Bucket(clientBurst, now);
+          stripe.put(client, clientBucket);
+        }
+        if (!clientBucket.take(config.admissionClientRate, clientBurst, now)) return false;
+      }
+    }
+
+    if (config.admissionGlobalRate > 0) {
+      boolean admitted;
+      synchronized (globalBucket) {
+        admitted = globalBucket.take(config.admissionGlobalRate, config.admissionGlobalRate, now);
+      }
+      if (!admitted) {
+        // The client didn't get to use its token, so it shouldn't count against it
+        if (clientBucket != null) {
+          synchronized (getStripe(client)) {
+            clientBucket.refund(clientBurst);
+          }
+        }
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private Map<InetAddress, Bucket> getStripe(InetAddress client) {
+    var hash = client.hashCode();
+    return stripes.get(Math.floorMod(hash ^ (hash >>> 16), stripeCount));
+  }
+}
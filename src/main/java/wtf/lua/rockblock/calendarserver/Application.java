@@ -1,7 +1,14 @@
 package wtf.lua.rockblock.calendarserver;
 
 import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,28 +42,102 @@ import io.netty.channel.nio.NioEventLoopGroup;
 public final class Application {
   private static final Logger log = LoggerFactory.getLogger(Application.class);
 
+  // How many times a training run sends its workload
+  private static final int trainingRounds = 3;
+
+  // Parts of the simulated workload that can't be set on the command line
+  private static final int simulationMonths = 24;
+  // Default month the simulation starts in, fixed so that runs on different days give the same report
+  private static final String simulationStart = "2024-01";
+  private static final double simulationZipfExponent = 1;
+  private static final long simulationBurstWindow = 1000;
+  private static final long simulationUpstreamLatency = 300;
+  private static final long simulationUpstreamJitter = 700;
+  private static final double simulationChangeProbability = 0.1;
+
   /**
    * Application entrypoint function, called by the JVM, don't touch this!
-   * @param args Command-line argument string array
+   * @param args Command-line argument string array, the first argument (if present) is the path to the config file,
+   *             or "prerender" followed by the first and last month to pre-render (YYYY-MM), the path to the config file and the tenant,
+   *             or "train" followed by the path to the config file,
+   *             or "startup-benchmark" followed by the number of runs and the path to the config file,
+   *             or "simulate" followed by the trace length (minutes), request rate (per second), burst size, the path to the config file, the seed and the start month
    */
   public static void main(String[] args) {
     log.info("Starting RockBlock CalendarServer version v{}...", getVersion());
 
-    String configPath = "config.json";
-    Config config;
-    log.info("Reading config from {}", configPath);
-    try {
-      config = Config.readConfig(configPath);
-    } catch (IOException error) {
-      log.warn("Failed to read the config file", error);
-      config = Config.defaultConfig;
+    if (args.length > 0) {
+      switch (args[0]) {
+        case "prerender":
+          prerender(args);
+          return;
+        case "train":
+          train(args);
+          return;
+        case "startup-benchmark":
+          startupBenchmark(args);
+          return;
+        case "simulate":
+          simulate(args);
+          return;
+      }
     }
 
+    serve(args.length > 0 ? args[0] : "config.json");
+  }
+
+  // Serve the config at "configPath" until the server is closed
+  private static void serve(String configPath) {
+    var config = readConfig(configPath);
+    var configWatcher = new ConfigWatcher(configPath, config);
+
+    // Log messages from the request path and access log entries are written on background threads
+    EventLog.start(config.logBufferSize);
+    var accessLog = openAccessLog(config);
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      if (accessLog != null) accessLog.close();
+      EventLog.stop();
+    }, "log-shutdown"));
+
     EventLoopGroup groupAccept = new NioEventLoopGroup(1);
     EventLoopGroup groupServe = new NioEventLoopGroup();
     try {
-      var calendarJsonProvider = new CalendarJsonProvider(ForkJoinPool.commonPool(), config);
-      var server = new Server(groupAccept, groupServe, config, calendarJsonProvider);
+      // Every tenant shares the event loops, executor and HTTP client, but has its own cache
+      var downloader = new Downloader(
+        ForkJoinPool.commonPool(),
+        config.downloadConnectTimeout,
+        config.downloadHttp2,
+        config.downloadCompression
+      );
+      var defaultTenant = createTenant(null, config, downloader, groupServe);
+      var tenants = new LinkedHashMap<String, Tenant>();
+      for (var entry : config.tenants.entrySet()) {
+        if (!Tenant.isValidName(entry.getKey())) {
+          log.warn("Ignoring tenant \"{}\", tenant names must start with a letter and can't be a reserved path", entry.getKey());
+          continue;
+        }
+        tenants.put(entry.getKey(), createTenant(entry.getKey(), entry.getValue(), downloader, groupServe));
+      }
+      if (!tenants.isEmpty()) log.info("Serving tenants {}", tenants.keySet());
+
+      var admissionController = new AdmissionController(config);
+      var server = new Server(groupAccept, groupServe, ForkJoinPool.commonPool(), configWatcher, defaultTenant, tenants, admissionController, accessLog);
+
+      // Apply config changes without restarting (and losing the cache)
+      configWatcher.addListener((oldConfig, newConfig) -> {
+        warnRestartRequired(oldConfig, newConfig);
+        admissionController.reconfigure(newConfig);
+        defaultTenant.reconfigure(newConfig);
+        for (var tenant : tenants.values()) {
+          var tenantConfig = newConfig.tenants.get(tenant.name);
+          if (tenantConfig != null) tenant.reconfigure(tenantConfig);
+        }
+      });
+      configWatcher.start();
+
+      // Warm up while the server binds, "/ready" reports once it is done
+      defaultTenant.cacheWarmer.start();
+      for (var tenant : tenants.values()) tenant.cacheWarmer.start();
       server.start();
     } catch (Throwable error) {
       log.error("Oops! Something went horribly wrong", error);
@@ -66,6 +147,258 @@ public final class Application {
     }
   }
 
+  private static AccessLog openAccessLog(Config config) {
+    if (config.accessLog == null) return null;
+    try {
+      return new AccessLog(config.accessLog, config.logBufferSize);
+    } catch (IOException error) {
+      log.error("Failed to open the access log, responses won't be logged", error);
+      return null;
+    }
+  }
+
+  private static Tenant createTenant(String name, Config config, Downloader downloader, EventLoopGroup group) {
+    var calendarJsonProvider = new CalendarJsonProvider(ForkJoinPool.commonPool(), config, downloader, name);
+    var eventStreamBroadcaster = new EventStreamBroadcaster(group, config, calendarJsonProvider);
+    var cacheWarmer = new CacheWarmer(ForkJoinPool.commonPool(), config, calendarJsonProvider);
+    return new Tenant(name, config, calendarJsonProvider, eventStreamBroadcaster, cacheWarmer, ForkJoinPool.commonPool());
+  }
+
+  private static Config readConfig(String configPath) {
+    log.info("Reading config from {}", configPath);
+    try {
+      return Config.readConfig(configPath);
+    } catch (IOException error) {
+      log.warn("Failed to read the config file", error);
+      return Config.defaultConfig;
+    }
+  }
+
+  // Render every month from args[1] to args[2] (inclusive) into the pre-render directory, then exit
+  private static void prerender(String[] args) {
+    if (args.length < 3) {
+      log.error("Usage: prerender <first month YYYY-MM> <last month YYYY-MM> [config path] [tenant]");
+      System.exit(2);
+    }
+
+    var config = readConfig(args.length > 3 ? args[3] : "config.json");
+    var name = args.length > 4 ? args[4] : null;
+    if (name != null) {
+      config = config.tenants.get(name);
+      if (config == null || !Tenant.isValidName(name)) {
+        log.error("Tenant \"{}\" is not set in the config", name);
+        System.exit(2);
+      }
+    }
+    if (config.prerenderDirectory == null) {
+      log.error("\"prerenderDirectory\" is not set in the config");
+      System.exit(2);
+    }
+
+    List<Month> months;
+    try {
+      var first = Month.parse(args[1]);
+      var last = Month.parse(args[2]);
+      var count = (last.year * 12 + last.month) - (first.year * 12 + first.month) + 1;
+      if (count <= 0)
+        throw new InvalidMonthException("Range end is before its start");
+      months = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) months.add(first.plus(i));
+    } catch (InvalidMonthException error) {
+      log.error("Invalid month range: {}", error.getMessage());
+      System.exit(2);
+      return;
+    }
+
+    var calendarJsonProvider = new CalendarJsonProvider(
+      ForkJoinPool.commonPool(),
+      config,
+      new Downloader(ForkJoinPool.commonPool(), config.downloadConnectTimeout, config.downloadHttp2, config.downloadCompression),
+      name
+    );
+    var directory = Tenant.getPrerenderDirectory(name, config);
+    var prerenderer = new Prerenderer(ForkJoinPool.commonPool(), config, directory, calendarJsonProvider);
+
+    log.info("Rendering {} months into {}", months.size(), directory);
+    int succeeded;
+    try {
+      succeeded = prerenderer.render(months).join();
+    } catch (Throwable error) {
+      log.error("Oops! Something went horribly wrong", error);
+      System.exit(1);
+      return;
+    }
+    log.info("Rendered {} of {} months", succeeded, months.size());
+    System.exit(succeeded == months.size() ? 0 : 1);
+  }
+
+  // Serve a copy of the config at args[1] backed by a training upstream, send it a representative workload, then exit
+  // Run with "-XX:ArchiveClassesAtExit=<archive>" to write an AppCDS archive of every class that was loaded
+  private static void train(String[] args) {
+    var configPath = args.length > 1 ? args[1] : "config.json";
+    try (var upstream = new TrainingUpstream()) {
+      var port = findFreePort();
+      var trainingConfigPath = upstream.writeConfig(configPath, port).toString();
+      var config = readConfig(trainingConfigPath);
+
+      var thread = new Thread(() -> serve(trainingConfigPath), "training-server");
+      thread.setDaemon(true);
+      thread.start();
+
+      log.info("Training with {} on port {}", upstream.getUrlTemplate(), port);
+      new Trainer(port, config.tenants.keySet()).run(trainingRounds);
+    } catch (Throwable error) {
+      log.error("Oops! Something went horribly wrong", error);
+      System.exit(1);
+      return;
+    }
+    log.info("Training finished");
+    System.exit(0);
+  }
+
+  // Launch args[1] servers (one after another) for a copy of the config at args[2] and report how long they took to serve their first request
+  private static void startupBenchmark(String[] args) {
+    int runs;
+    try {
+      runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+      if (runs <= 0) throw new NumberFormatException("Run count must be positive");
+    } catch (NumberFormatException error) {
+      log.error("Usage: startup-benchmark [runs] [config path]");
+      System.exit(2);
+      return;
+    }
+    var configPath = args.length > 2 ? args[2] : "config.json";
+
+    var times = new long[runs];
+    try (var upstream = new TrainingUpstream()) {
+      var benchmark = new StartupBenchmark();
+      var month = Month.current();
+      for (int i = 0; i < runs; i++) {
+        var port = findFreePort();
+        times[i] = benchmark.measure(upstream.writeConfig(configPath, port), port, month);
+        log.info("Run {} of {} served its first request after {} ms", i + 1, runs, TimeUnit.NANOSECONDS.toMillis(times[i]));
+      }
+    } catch (Throwable error) {
+      log.error("Oops! Something went horribly wrong", error);
+      System.exit(1);
+      return;
+    }
+
+    Arrays.sort(times);
+    log.info(
+      "Time to first served request over {} runs: min {} ms, median {} ms, max {} ms",
+      runs,
+      TimeUnit.NANOSECONDS.toMillis(times[0]),
+      TimeUnit.NANOSECONDS.toMillis(times[runs / 2]),
+      TimeUnit.NANOSECONDS.toMillis(times[runs - 1])
+    );
+    System.exit(0);
+  }
+
+  // Replay a synthetic request trace against the cache settings of the config at args[4] in virtual time and report the results
+  private static void simulate(String[] args) {
+    Simulator.Workload workload;
+    try {
+      var minutes = args.length > 1 ? Long.parseLong(args[1]) : 60;
+      var requestRate = args.length > 2 ? Double.parseDouble(args[2]) : 20;
+      var burstSize = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+      var seed = args.length > 5 ? Long.parseLong(args[5]) : 1;
+      var start = Month.parse(args.length > 6 ? args[6] : simulationStart);
+      if (minutes <= 0 || requestRate < 0 || burstSize < 0)
+        throw new NumberFormatException("Values must not be negative");
+      workload = new Simulator.Workload(
+        start,
+        TimeUnit.MINUTES.toMillis(minutes),
+        requestRate,
+        simulationMonths,
+        simulationZipfExponent,
+        burstSize,
+        simulationBurstWindow,
+        simulationUpstreamLatency,
+        simulationUpstreamJitter,
+        simulationChangeProbability,
+        seed
+      );
+    } catch (NumberFormatException | InvalidMonthException error) {
+      log.error("Usage: simulate [minutes] [requests per second] [burst size] [config path] [seed] [start month YYYY-MM]");
+      System.exit(2);
+      return;
+    }
+    var config = readConfig(args.length > 4 ? args[4] : "config.json");
+
+    var started = System.nanoTime();
+    Simulator.Report report;
+    try {
+      report = new Simulator(config, workload).run();
+    } catch (Throwable error) {
+      log.error("Oops! Something went horribly wrong", error);
+      System.exit(1);
+      return;
+    }
+
+    log.info(
+      "Simulated {} requests over {} minutes in {} ms",
+      report.requests,
+      TimeUnit.MILLISECONDS.toMinutes(workload.duration),
+      TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started)
+    );
+    log.info(
+      "Upstream calls: {} (at most {} at once, {} requests per call)",
+      report.upstreamCalls,
+      report.peakUpstreamCalls,
+      String.format("%.1f", report.upstreamCalls > 0 ? (double)report.requests / report.upstreamCalls : 0.0)
+    );
+    log.info(
+      "Hits: {}, stale hits: {}, coalesced: {}, misses: {}, failed: {}",
+      report.hits, report.staleHits, report.coalesced, report.misses, report.failed
+    );
+    log.info("Coalescing: {}% of waiting requests joined an update in progress", String.format("%.1f", report.getCoalescingRatio() * 100));
+    log.info(
+      "Waiting time: p50 {} ms, p90 {} ms, p99 {} ms, max {} ms",
+      report.getWaitTime(0.5),
+      report.getWaitTime(0.9),
+      report.getWaitTime(0.99),
+      report.getWaitTime(1)
+    );
+    System.exit(0);
+  }
+
+  private static int findFreePort() throws IOException {
+    try (var socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  private static void warnRestartRequired(Config oldConfig, Config newConfig) {
+    var restartRequired =
+      requiresRestart(oldConfig, newConfig) ||
+      !oldConfig.tenants.keySet().equals(newConfig.tenants.keySet());
+    for (var entry : oldConfig.tenants.entrySet()) {
+      var newTenantConfig = newConfig.tenants.get(entry.getKey());
+      if (newTenantConfig != null && requiresRestart(entry.getValue(), newTenantConfig)) restartRequired = true;
+    }
+
+    if (restartRequired) {
+      log.warn("Some of the changed config options only take effect after a restart");
+    }
+  }
+
+  private static boolean requiresRestart(Config oldConfig, Config newConfig) {
+    return (
+      oldConfig.port != newConfig.port ||
+      !Objects.equals(oldConfig.accessLog, newConfig.accessLog) ||
+      oldConfig.logBufferSize != newConfig.logBufferSize ||
+      oldConfig.downloadConnectTimeout != newConfig.downloadConnectTimeout ||
+      oldConfig.downloadHttp2 != newConfig.downloadHttp2 ||
+      oldConfig.downloadCompression != newConfig.downloadCompression ||
+      oldConfig.recurrenceLimit != newConfig.recurrenceLimit ||
+      oldConfig.cacheOffHeap != newConfig.cacheOffHeap ||
+      oldConfig.cacheMaxBytes != newConfig.cacheMaxBytes ||
+      !oldConfig.clusterPeers.equals(newConfig.clusterPeers) ||
+      !Objects.equals(oldConfig.clusterSelf, newConfig.clusterSelf)
+    );
+  }
+
   /**
    * Retrieve the version string (without "v" prefix) for our package "wtf.lua.rockblock.calendarserver".
    * @return Package's version string
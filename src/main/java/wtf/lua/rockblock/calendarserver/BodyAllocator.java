@@ -0,0 +1,123 @@
+package wtf.lua.rockblock.calendarserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+/**
+ * BodyAllocator allocates the buffers that cached {@link MonthBody} encodings are stored in and enforces the cache byte budget.
+ * Buffers are either on-heap (wrapping the encoded byte array) or copied into pooled direct (off-heap) memory.
+ * When an allocation would exceed the budget, least recently used cache entries are evicted through the {@link BodyAllocator.Evictor}
+ * until it fits, if it still doesn't fit the allocation fails and the caller should not cache the encoding.
+ *
+ * <p>
+ * Copyright (C) 2020 Lua MacDougall
+ * <br/><br/>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <br/><br/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * <br/><br/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see &lt;https://www.gnu.org/licenses/&gt;.
+ * </p>
+ *
+ * @author Lua MacDougall &lt;luawhat@gmail.com&gt;
+ */
+public final class BodyAllocator {
+  /**
+   * Evictor frees cached bodies to make room for new allocations.
+   */
+  public static interface Evictor {
+    /**
+     * Evict the least recently used cache entry.
+     * @return Boolean indicating if an entry was evicted, "false" if there is nothing left to evict.
+     */
+    public boolean evict();
+  }
+
+  private final boolean offHeap;
+  private final long maxBytes;
+
+  private final AtomicLong usedBytes;
+
+  private volatile Evictor evictor;
+
+  /**
+   * Create a new BodyAllocator instance.
+   * @param offHeap Store bodies in pooled direct memory instead of on the heap?
+   * @param maxBytes Maximum number of bytes that may be allocated at once, "0" for no limit.
+   */
+  public BodyAllocator(boolean offHeap, long maxBytes) {
+    this.offHeap = offHeap;
+    this.maxBytes = maxBytes;
+    usedBytes = new AtomicLong();
+  }
+
+  /**
+   * Set the evictor that is used when the budget is exhausted.
+   * @param evictor Evictor instance.
+   */
+  public void setEvictor(Evictor evictor) {
+    this.evictor = evictor;
+  }
+
+  /**
+   * Get the number of bytes currently allocated.
+   * @return Allocated byte count.
+   */
+  public long getUsedBytes() {
+    return usedBytes.get();
+  }
+
+  /**
+   * Allocate a buffer holding an encoded body, evicting other bodies if the budget is exhausted.
+   * @param bytes Encoded body.
+   * @return Buffer containing "bytes" (with a reference count of 1), or "null" if it does not fit into the budget.
+   */
+  public ByteBuf allocate(byte[] bytes) {
+    if (!reserve(bytes.length)) return null;
+
+    if (!offHeap) return Unpooled.wrappedBuffer(bytes);
+
+    var buffer = PooledByteBufAllocator.DEFAULT.directBuffer(bytes.length, bytes.length);
+    buffer.writeBytes(bytes);
+    return buffer;
+  }
+
+  /**
+   * Release a buffer returned by {@link BodyAllocator#allocate} and return its bytes to the budget.
+   * Callers holding duplicates of the buffer keep the memory alive until they release them.
+   * @param buffer Buffer to free.
+   */
+  public void free(ByteBuf buffer) {
+    usedBytes.addAndGet(-buffer.capacity());
+    buffer.release();
+  }
+
+  private boolean reserve(long size) {
+    if (maxBytes <= 0) {
+      usedBytes.addAndGet(size);
+      return true;
+    }
+    if (size > maxBytes) return false;
+
+    while (true) {
+      var used = usedBytes.get();
+      if (used + size <= maxBytes) {
+        if (usedBytes.compareAndSet(used, used + size)) return true;
+        continue;
+      }
+
+      var evictor = this.evictor;
+      if (evictor == null || !evictor.evict()) return false;
+    }
+  }
+}
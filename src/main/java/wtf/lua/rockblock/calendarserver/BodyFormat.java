@@ -0,0 +1,114 @@
+package wtf.lua.rockblock.calendarserver;
+
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * BodyFormat lists the encodings that calendar month data can be served in, selected using the HTTP "Accept" header.
+ * JSON is always available, the binary formats are more compact and faster to decode.
+ *
+ * <p>
+ * Copyright (C) 2020 Lua MacDougall
+ * <br/><br/>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <br/><br/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * <br/><br/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see &lt;https://www.gnu.org/licenses/&gt;.
+ * </p>
+ *
+ * @author Lua MacDougall &lt;luawhat@gmail.com&gt;
+ */
+public enum BodyFormat {
+  /** JSON, see <a href="https://tools.ietf.org/html/rfc8259">RFC 8259</a>. */
+  JSON("application/json", ObjectMapper::new),
+  /** Concise Binary Object Representation, see <a href="https://tools.ietf.org/html/rfc7049">RFC 7049</a>. */
+  CBOR("application/cbor", () -> new ObjectMapper(new CBORFactory())),
+  /** Jackson's binary JSON format, see <a href="https://github.com/FasterXML/smile-format-specification">the specification</a>. */
+  SMILE("application/x-jackson-smile", () -> new ObjectMapper(new SmileFactory()));
+
+  /** HTTP Content-Type of this format. */
+  public final String contentType;
+
+  private final Supplier<ObjectMapper> mapperSupplier;
+  private volatile ObjectMapper mapper;
+
+  private BodyFormat(String contentType, Supplier<ObjectMapper> mapperSupplier) {
+    this.contentType = contentType;
+    this.mapperSupplier = mapperSupplier;
+  }
+
+  /**
+   * Get the ObjectMapper that reads and writes this format, creating it on first use.
+   * @return ObjectMapper instance.
+   */
+  public ObjectMapper getMapper() {
+    var mapper = this.mapper;
+    if (mapper == null) {
+      synchronized (this) {
+        mapper = this.mapper;
+        if (mapper == null) this.mapper = mapper = mapperSupplier.get();
+      }
+    }
+    return mapper;
+  }
+
+  private static final Pattern acceptSplitPattern = Pattern.compile(",");
+  private static final Pattern parameterSplitPattern = Pattern.compile(";");
+
+  /**
+   * Select the best format for the value of an HTTP "Accept" header.
+   * Media ranges are ranked by their "q" parameter (and then by their position in the header), {@link BodyFormat#JSON} is used for wildcards or if nothing matches.
+   * @param accept Value of the "Accept" header, may be "null".
+   * @return Selected format.
+   */
+  public static BodyFormat negotiate(String accept) {
+    if (accept == null || accept.isEmpty()) return JSON;
+
+    BodyFormat best = null;
+    double bestQuality = 0;
+
+    for (var range : acceptSplitPattern.split(accept)) {
+      var parameters = parameterSplitPattern.split(range);
+      var type = parameters[0].trim();
+
+      double quality = 1;
+      for (int i = 1; i < parameters.length; i++) {
+        var parameter = parameters[i].trim();
+        if (parameter.startsWith("q=")) {
+          try { quality = Double.parseDouble(parameter.substring(2)); }
+          catch (NumberFormatException error) { quality = 0; }
+        }
+      }
+      if (quality <= bestQuality) continue;
+
+      // Wildcards are satisfied by our default format
+      if (type.equals("*/*") || type.equals("application/*")) {
+        best = JSON;
+        bestQuality = quality;
+        continue;
+      }
+
+      for (var format : values()) {
+        if (format.contentType.equalsIgnoreCase(type)) {
+          best = format;
+          bestQuality = quality;
+          break;
+        }
+      }
+    }
+
+    return best != null ? best : JSON;
+  }
+}
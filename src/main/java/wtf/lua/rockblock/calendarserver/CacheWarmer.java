@@ -0,0 +1,132 @@
+package wtf.lua.rockblock.calendarserver;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * CacheWarmer fills the cache of a {@link CalendarJsonProvider} with the months around the current month on startup,
+ * so the first clients after a restart don't have to wait for the calendar source.
+ * Months are fetched with bounded concurrency, months that fail are retried until every month has been cached once.
+ *
+ * <p>
+ * Copyright (C) 2020 Lua MacDougall
+ * <br/><br/>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <br/><br/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * <br/><br/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see &lt;https://www.gnu.org/licenses/&gt;.
+ * </p>
+ *
+ * @author Lua MacDougall &lt;luawhat@gmail.com&gt;
+ */
+public final class CacheWarmer {
+  private static final Logger log = LoggerFactory.getLogger(CacheWarmer.class);
+
+  // Time in milliseconds to wait before retrying a month that failed to warm up
+  private static final long retryDelay = 5000;
+  // Number of times a month is fetched before giving up on it, so that one bad month can't keep the server from becoming ready
+  private static final int maxAttempts = 5;
+
+  private final Executor executor;
+  private final Config config;
+  private final CalendarJsonProvider calendarJsonProvider;
+
+  // Months that have yet to be fetched, and the number of months that have yet to complete
+  private final Queue<Month> queue;
+  private final AtomicInteger remaining;
+  // Month -> number of failed attempts so far
+  private final Map<Month, Integer> failures;
+
+  private volatile boolean started;
+
+  /**
+   * Create a new CacheWarmer instance.
+   * @param executor Executor to continue warming up on once a month has been fetched.
+   * @param config Application configuration.
+   * @param calendarJsonProvider CalendarJsonProvider to warm up.
+   */
+  public CacheWarmer(Executor executor, Config config, CalendarJsonProvider calendarJsonProvider) {
+    this.executor = executor;
+    this.config = config;
+    this.calendarJsonProvider = calendarJsonProvider;
+
+    queue = new ConcurrentLinkedQueue<>();
+    remaining = new AtomicInteger();
+    failures = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Start fetching the warm-up window (see {@link Config#warmupMonthsBefore} and {@link Config#warmupMonthsAfter}) in the background.
+   */
+  public void start() {
+    var current = Month.current();
+    for (int offset = -config.warmupMonthsBefore; offset <= config.warmupMonthsAfter; offset++) {
+      try {
+        var month = current.plus(offset);
+        if (config.isYearAllowed(month.year)) queue.add(month);
+      } catch (InvalidMonthException error) {
+        // Out of range, nothing to warm up
+      }
+    }
+    remaining.set(queue.size());
+    started = true;
+
+    log.info("Warming up the cache with {} months", queue.size());
+    for (int i = 0; i < Math.max(config.warmupConcurrency, 1); i++) next();
+  }
+
+  /**
+   * Has every month in the warm-up window been cached?
+   * @return Boolean indicating if the cache is warm and this server is ready to receive traffic.
+   */
+  public boolean isReady() {
+    return started && remaining.get() <= 0;
+  }
+
+  private void next() {
+    var month = queue.poll();
+    if (month == null) return;
+
+    calendarJsonProvider.request(month, false, PriorityExecutor.Priority.BACKGROUND).whenCompleteAsync((body, error) -> {
+      if (error == null) {
+        body.release();
+        done();
+        next();
+        return;
+      }
+
+      var attempts = failures.merge(month, 1, Integer::sum);
+      if (attempts >= maxAttempts) {
+        log.warn("Failed to warm up {} {} times, giving up on it", month, attempts, error);
+        done();
+        next();
+      } else {
+        log.warn("Failed to warm up {}, retrying in {} ms", month, retryDelay, error);
+        queue.add(month);
+        CompletableFuture.delayedExecutor(retryDelay, TimeUnit.MILLISECONDS, executor).execute(this::next);
+      }
+    }, executor);
+  }
+
+  // A month has been cached (or given up on)
+  private void done() {
+    if (remaining.decrementAndGet() == 0) log.info("Cache warm-up completed");
+  }
+}
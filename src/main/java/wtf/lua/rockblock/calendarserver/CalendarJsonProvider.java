@@ -1,16 +1,28 @@
 package wtf.lua.rockblock.calendarserver;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
 import java.net.URI;
+import java.time.Clock;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BooleanSupplier;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.netty.buffer.ByteBuf;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,6 +30,7 @@ import org.slf4j.LoggerFactory;
 /**
  * CalendarJsonProvider is the core of this application.
  * Using {@link Downloader} and {@link Deserializer}, this class provides methods to automatically download, deserialize, and JSON-ify calendar data.
+ * Deserialized events are kept in a shared {@link EventStore} so that other formats and projections can be produced without downloading again.
  * All results from CalendarJsonProvider are cached and cache settings + resource download location is provided by the {@link Config}.
  * Additionally, all public methods of this class are entirely thread safe, call from anywhere at any time!
  *
@@ -43,42 +56,65 @@ import org.slf4j.LoggerFactory;
 public final class CalendarJsonProvider {
   private static final Logger log = LoggerFactory.getLogger(CalendarJsonProvider.class);
 
+  /**
+   * UpdateListener is notified whenever an update completes with a body that differs from the previously cached one.
+   */
+  public static interface UpdateListener {
+    /**
+     * Called after the cache entry for "month" has been replaced with a new body.
+     * @param month Month that was updated.
+     * @param body New calendar month data body (as a {@link MonthBody}), only retained for the duration of the call.
+     */
+    public void onUpdate(Month month, MonthBody body);
+  }
+
   /**
    * CacheEntry represents an entry in "cacheMap" that will resolve with a calendar month data JSON body.
    */
   private static interface CacheEntry {
     /**
      * Is this entry still valid?
+     * @param now Current time in milliseconds.
      * @return Boolean indicating if this CacheEntry is valid or should be regenerated.
      */
-    public boolean isValid();
+    public boolean isValid(long now);
     /**
      * Get the body of this entry.
-     * @return CompletableFuture that completes with a calendar month data JSON body (as a byte array).
+     * @param now Current time in milliseconds, recorded as the time the entry was last used.
+     * @return CompletableFuture that completes with a calendar month data body (as a {@link MonthBody}).
      */
-    public CompletableFuture<byte[]> getBody();
+    public CompletableFuture<MonthBody> getBody(long now);
   }
   /**
    * PendingCacheEntry represents a pending operation to generate a calendar month data JSON body.
    */
   private static final class PendingCacheEntry implements CacheEntry {
-    private final CompletableFuture<byte[]> promise;
+    private final CompletableFuture<MonthBody> promise;
+    private final PriorityExecutor.Ticket ticket;
+
+    // Number of interactive callers still waiting on "promise"
+    private final AtomicInteger waiters;
+    // Does a background caller want the result to be cached? If so, it is never cancelled
+    private volatile boolean wanted;
 
     /**
      * Create a new PendingCacheEntry instance.
-     * @param promise CompletableFuture that completes with a calendar month data JSON body (as a byte array).
+     * @param promise CompletableFuture that completes with a calendar month data body (as a {@link MonthBody}).
+     * @param ticket Ticket of the tasks generating the body.
      */
-    public PendingCacheEntry(CompletableFuture<byte[]> promise) {
+    public PendingCacheEntry(CompletableFuture<MonthBody> promise, PriorityExecutor.Ticket ticket) {
       this.promise = promise;
+      this.ticket = ticket;
+      waiters = new AtomicInteger();
     }
 
     @Override
-    public boolean isValid() {
+    public boolean isValid(long now) {
       return true;
     }
 
     @Override
-    public CompletableFuture<byte[]> getBody() {
+    public CompletableFuture<MonthBody> getBody(long now) {
       return promise;
     }
   }
@@ -86,26 +122,56 @@ public final class CalendarJsonProvider {
    * CompletedCacheEntry represents a cached calendar month data JSON body that will eventually expire.
    */
   private static final class CompletedCacheEntry implements CacheEntry {
+    private final long created;
     private final long expires;
-    private final byte[] body;
+    private final long ttl;
+    private final MonthBody body;
+    private volatile long accessed;
 
     /**
      * Create a new CompletedCacheEntry instance.
-     * @param body Calendar month data JSON body (as a byte array).
+     * @param body Calendar month data body, the entry takes over the reference to it.
+     * @param created Time in milliseconds that this cache entry was created at.
      * @param ttl Time in milliseconds that this cache entry will be valid for.
      */
-    public CompletedCacheEntry(byte[] body, long ttl) {
+    public CompletedCacheEntry(MonthBody body, long created, long ttl) {
       this.body = body;
-      expires = System.currentTimeMillis() + ttl;
+      this.created = created;
+      this.ttl = ttl;
+      accessed = created;
+      expires = created + ttl;
+    }
+
+    /**
+     * Create a copy of this entry with a different body, keeping its expiry.
+     * @param body Calendar month data body, the new entry takes over the reference to it.
+     * @return CompletedCacheEntry instance.
+     */
+    public CompletedCacheEntry withBody(MonthBody body) {
+      var entry = new CompletedCacheEntry(body, created, ttl);
+      entry.accessed = accessed;
+      return entry;
+    }
+
+    /**
+     * Create a copy of this entry (sharing its body) with a different TTL, counted from when this entry was created.
+     * @param ttl Time in milliseconds that the new entry will be valid for.
+     * @return CompletedCacheEntry instance.
+     */
+    public CompletedCacheEntry withTTL(long ttl) {
+      var entry = new CompletedCacheEntry(body, created, ttl);
+      entry.accessed = accessed;
+      return entry;
     }
 
     @Override
-    public boolean isValid() {
-      return expires >= System.currentTimeMillis();
+    public boolean isValid(long now) {
+      return expires >= now;
     }
 
     @Override
-    public CompletableFuture<byte[]> getBody() {
+    public CompletableFuture<MonthBody> getBody(long now) {
+      accessed = now;
       return CompletableFuture.completedFuture(body);
     }
   }
@@ -127,26 +193,46 @@ public final class CalendarJsonProvider {
     }
 
     @Override
-    public boolean isValid() {
-      return oldEntry.isValid() || newEntry.isValid();
+    public boolean isValid(long now) {
+      return oldEntry.isValid(now) || newEntry.isValid(now);
     }
 
     @Override
-    public CompletableFuture<byte[]> getBody() {
-      var newBody = newEntry.getBody();
-      return newBody.isDone() ? newBody : oldEntry.getBody();
+    public CompletableFuture<MonthBody> getBody(long now) {
+      var newBody = newEntry.getBody(now);
+      return newBody.isDone() ? newBody : oldEntry.getBody(now);
     }
   }
 
+  // Time in milliseconds that background updates yield to interactive updates for
+  private static final long backgroundAgingDelay = 2000;
+
   // Cache + cache's lock
   private final Map<Month, CacheEntry> cacheMap;
   private final ReadWriteLock cacheLock;
 
-  // ObjectMapper for turning Event[] -> JSON byte[]
-  private final ObjectMapper objectMapper;
+  // Compact storage for the events of every cached month
+  private final EventStore eventStore;
+  // Storage (and byte budget) for the encoded bodies of every cached month
+  private final BodyAllocator bodyAllocator;
+
+  // Listeners notified when a month's body changes
+  private final List<UpdateListener> updateListeners;
+
+  // Consistent hash ring used to find the owner of a month ("null" if cluster mode is disabled)
+  private final ClusterRing clusterRing;
 
   private final Executor executor;
-  private final Config config;
+  // Source of the current time for cache entries
+  private final Clock clock;
+  // Runs the download/parse/serialize stages of updates, interactive updates first
+  private final PriorityExecutor priorityExecutor;
+  // Limits how many downloads from the calendar source (and their parsing) are in progress at once
+  private final ConcurrencyLimiter downloadLimiter;
+  private volatile Config config;
+
+  // Name of the tenant this provider serves ("null" for the default tenant), used to address the same tenant on peers
+  private final String tenant;
 
   /** Downloader instance used to download calendar data. */
   public final Downloader downloader;
@@ -154,29 +240,105 @@ public final class CalendarJsonProvider {
   public final Deserializer deserializer;
 
   /**
-   * Create a new CalendarJsonProvider instance.
+   * Create a new CalendarJsonProvider instance for one tenant, see {@link Tenant}.
+   * @param executor Executor instance to run all calendar request/update tasks on.
+   * @param config Configuration of the tenant.
+   * @param downloader Downloader instance shared by every tenant.
+   * @param tenant Name of the tenant, or "null" for the default tenant.
+   */
+  public CalendarJsonProvider(Executor executor, Config config, Downloader downloader, String tenant) {
+    this(executor, config, downloader, tenant, Clock.systemUTC());
+  }
+
+  /**
+   * Create a new CalendarJsonProvider instance for one tenant that reads the time from a clock, see {@link Simulator}.
    * @param executor Executor instance to run all calendar request/update tasks on.
-   * @param config Application configuration.
+   * @param config Configuration of the tenant.
+   * @param downloader Downloader instance shared by every tenant.
+   * @param tenant Name of the tenant, or "null" for the default tenant.
+   * @param clock Clock that cache entries are created, accessed and expired by.
    */
-  public CalendarJsonProvider(Executor executor, Config config) {
+  public CalendarJsonProvider(Executor executor, Config config, Downloader downloader, String tenant, Clock clock) {
     this.executor = executor;
     this.config = config;
+    this.downloader = downloader;
+    this.tenant = tenant;
+    this.clock = clock;
 
-    downloader = new Downloader(executor, config.downloadConnectTimeout);
-    deserializer = new Deserializer(executor, config.hiddenRegex);
+    priorityExecutor = new PriorityExecutor(executor, backgroundAgingDelay, clock);
+    downloadLimiter = new ConcurrencyLimiter(config.downloadConcurrency);
 
-    objectMapper = new ObjectMapper();
+    deserializer = new Deserializer(executor, config.hiddenRegex, config.recurrenceLimit, config.parseChunkEvents);
+
+    eventStore = new EventStore();
+    bodyAllocator = new BodyAllocator(config.cacheOffHeap, config.cacheMaxBytes);
+    bodyAllocator.setEvictor(this::evict);
+
+    clusterRing =
+      config.isClustered()
+        ? new ClusterRing(config.clusterPeers, config.clusterSelf)
+        : null;
 
     cacheMap = new HashMap<>();
     cacheLock = new ReentrantReadWriteLock();
+
+    updateListeners = new CopyOnWriteArrayList<>();
+  }
+
+  /**
+   * Register a listener that will be notified whenever an update completes with different content.
+   * @param listener Listener to add.
+   */
+  public void addUpdateListener(UpdateListener listener) {
+    updateListeners.add(listener);
+  }
+
+  /**
+   * Retrieve JSON data for a month from the cache, redownloading and regenerating it if it is out-of-date or has yet to be cached.
+   * @param month Month to retrieve.
+   * @return CompletableFuture that completes with a retained calendar month data body (as a {@link MonthBody}), the caller must release it.
+   */
+  public CompletableFuture<MonthBody> request(Month month) {
+    return request(month, false);
   }
 
   /**
    * Retrieve JSON data for a month from the cache, redownloading and regenerating it if it is out-of-date or has yet to be cached.
    * @param month Month to retrieve.
-   * @return CompletableFuture that completes with a calendar month data JSON body (as a byte array).
+   * @param fromPeer Was this request made by another node in the cluster? If so, the data is never fetched from a peer.
+   * @return CompletableFuture that completes with a retained calendar month data body (as a {@link MonthBody}), the caller must release it.
    */
-  public CompletableFuture<byte[]> request(Month month) {
+  public CompletableFuture<MonthBody> request(Month month, boolean fromPeer) {
+    return request(month, fromPeer, PriorityExecutor.Priority.INTERACTIVE);
+  }
+
+  /**
+   * Retrieve JSON data for a month from the cache, redownloading and regenerating it if it is out-of-date or has yet to be cached.
+   * @param month Month to retrieve.
+   * @param fromPeer Was this request made by another node in the cluster? If so, the data is never fetched from a peer.
+   * @param priority Priority of the update if the month has to be regenerated, {@link PriorityExecutor.Priority#BACKGROUND} if nobody is waiting on it.
+   * @return CompletableFuture that completes with a retained calendar month data body (as a {@link MonthBody}), the caller must release it.
+   */
+  public CompletableFuture<MonthBody> request(Month month, boolean fromPeer, PriorityExecutor.Priority priority) {
+    return request(month, fromPeer, priority, () -> true);
+  }
+
+  /**
+   * Retrieve JSON data for a month from the cache, redownloading and regenerating it if it is out-of-date or has yet to be cached,
+   * as long as the update is admitted (see {@link AdmissionController}).
+   * @param month Month to retrieve.
+   * @param fromPeer Was this request made by another node in the cluster? If so, the data is never fetched from a peer.
+   * @param priority Priority of the update if the month has to be regenerated, {@link PriorityExecutor.Priority#BACKGROUND} if nobody is waiting on it.
+   * @param admission Decides if the month may be generated, only called if it is not in the cache at all (expired months are always updated).
+   * @return CompletableFuture that completes with a retained calendar month data body (as a {@link MonthBody}), the caller must release it.
+   *         Completes with an {@link AdmissionDeniedException} if "admission" refused the update.
+   */
+  public CompletableFuture<MonthBody> request(
+    Month month,
+    boolean fromPeer,
+    PriorityExecutor.Priority priority,
+    BooleanSupplier admission
+  ) {
     CacheEntry entry;
 
     // Safely read entry from the cache
@@ -184,13 +346,18 @@ public final class CalendarJsonProvider {
       entry = cacheMap.get(month);
     } finally { cacheLock.readLock().unlock(); }
 
-    if (entry != null && entry.isValid()) {
-      // Cached value is valid! Return it.
-      return entry.getBody();
+    var now = clock.millis();
+    if (entry != null && entry.isValid(now)) {
+      // Cached value is valid! Return it (speeding it up if it is still being generated).
+      if (priority == PriorityExecutor.Priority.INTERACTIVE) promote(entry);
+      return track(month, entry, acquire(entry.getBody(now), month, fromPeer, priority), priority);
     } else {
-      // No value in cache, or cached value is invalid, run update to generate a new one.
-      log.info("Cache miss for {}", month);
-      return update(month);
+      // No value in cache, or cached value is invalid, run update to generate a new one
+      // Only true misses count against the client, an expired entry still has a (stale) body to serve while it is updated
+      if (entry == null && !admission.getAsBoolean())
+        return CompletableFuture.failedFuture(new AdmissionDeniedException("Too many requests for uncached months"));
+      EventLog.info(log, "Cache miss for {}", month);
+      return update(month, fromPeer, priority);
     }
   }
 
@@ -198,9 +365,46 @@ public final class CalendarJsonProvider {
    * Attempt to redownload and regenerate the JSON data for a month.
    * If an update operation is already in progress then the CompletableFuture for that operation is returned instead.
    * @param month Month to update.
-   * @return CompletableFuture that completes with a calendar month data JSON body (as a byte array).
+   * @return CompletableFuture that completes with a retained calendar month data body (as a {@link MonthBody}), the caller must release it.
+   */
+  public CompletableFuture<MonthBody> update(Month month) {
+    return update(month, false);
+  }
+
+  /**
+   * Attempt to redownload and regenerate the JSON data for a month.
+   * If an update operation is already in progress then the CompletableFuture for that operation is returned instead.
+   * @param month Month to update.
+   * @param fromPeer Was this update requested by another node in the cluster? If so, the data is never fetched from a peer.
+   * @return CompletableFuture that completes with a retained calendar month data body (as a {@link MonthBody}), the caller must release it.
+   */
+  public CompletableFuture<MonthBody> update(Month month, boolean fromPeer) {
+    return update(month, fromPeer, PriorityExecutor.Priority.INTERACTIVE);
+  }
+
+  /**
+   * Attempt to redownload and regenerate the JSON data for a month.
+   * If an update operation is already in progress then the CompletableFuture for that operation is returned instead,
+   * promoting it if "priority" is {@link PriorityExecutor.Priority#INTERACTIVE}.
+   * @param month Month to update.
+   * @param fromPeer Was this update requested by another node in the cluster? If so, the data is never fetched from a peer.
+   * @param priority Priority of the update, {@link PriorityExecutor.Priority#BACKGROUND} if nobody is waiting on it.
+   * @return CompletableFuture that completes with a retained calendar month data body (as a {@link MonthBody}), the caller must release it.
    */
-  public CompletableFuture<byte[]> update(Month month) {
+  public CompletableFuture<MonthBody> update(Month month, boolean fromPeer, PriorityExecutor.Priority priority) {
+    // Peers only ask the owner, so their updates are always generated here
+    var entry = updateEntry(month, fromPeer, priority);
+    return track(month, entry, acquire(entry.getBody(clock.millis()), month, fromPeer, priority), priority);
+  }
+
+  // Update a month from the calendar source even if another node in the cluster owns it
+  private CompletableFuture<MonthBody> updateLocally(Month month, PriorityExecutor.Priority priority) {
+    var entry = updateEntry(month, true, priority);
+    return track(month, entry, acquire(entry.getBody(clock.millis()), month, false, priority), priority);
+  }
+
+  // "local" generates the body from the calendar source even if another node in the cluster owns the month
+  private CacheEntry updateEntry(Month month, boolean local, PriorityExecutor.Priority priority) {
     // Lock the cache exclusively for us while we work
     cacheLock.writeLock().lock(); try {
 
@@ -210,66 +414,528 @@ public final class CalendarJsonProvider {
         oldEntry instanceof PendingCacheEntry ||
         oldEntry instanceof UpdatingCacheEntry
       ) {
-        // Return the pending update promise
-        return oldEntry.getBody();
+        // Return the pending update
+        if (priority == PriorityExecutor.Priority.INTERACTIVE) promote(oldEntry);
+        return oldEntry;
       }
 
-      log.info("Update for {} started", month);
+      EventLog.info(log, "Update for {} started", month);
+
+      // Remember the old body's hash + TTL so we can tell if the content actually changed, and adapt the TTL accordingly
+      var oldHash =
+        oldEntry instanceof CompletedCacheEntry
+          ? (Long)((CompletedCacheEntry)oldEntry).body.contentHash
+          : null;
+      var oldTTL =
+        oldEntry instanceof CompletedCacheEntry
+          ? ((CompletedCacheEntry)oldEntry).ttl
+          : config.cacheTTL;
 
       // We're good to start working! Begin generating the body
-      var promise = generateBody(month);
+      var ticket = new PriorityExecutor.Ticket(priority);
+      var trace = Trace.create(month.expression, config.serverTiming);
+      var generation =
+        clusterRing != null && !local && !clusterRing.isOwner(month)
+          ? generateBodyFromPeer(month, clusterRing.owner(month), ticket, trace)
+          : generateBody(month, ticket, trace);
+
+      // Cancelling the ticket fails the update straight away, a body that is generated regardless is freed
+      var promise = new CompletableFuture<MonthBody>();
+      generation.whenComplete((body, error) -> {
+        if (error != null) promise.completeExceptionally(error);
+        else if (!promise.complete(body)) body.release();
+      });
+      ticket.onCancel(() -> promise.completeExceptionally(new CancellationException("Update is no longer wanted")));
+
+      // Create new cache entries
+      var newEntry = new PendingCacheEntry(promise, ticket);
+      // If we are creating a new cache entry, then use the PendingCacheEntry directly
+      // However, if we are replacing an existing cache entry then use UpdatingCacheEntry
+      var updatingEntry =
+        oldEntry != null
+          ? new UpdatingCacheEntry(oldEntry, newEntry)
+          : newEntry;
+
+      // Insert the new entry into the cache
+      cacheMap.put(month, updatingEntry);
 
       // Once we're done generating the body ...
       promise.handleAsync((body, error) -> {
+        CacheEntry previousEntry = null;
+        MonthBody replacedBody = null;
+        var changed = false;
+
         // Lock the cache exclusively again
         cacheLock.writeLock().lock(); try {
-          // And update the cache entry to either "null" (if generateBody failed) or a CompletedCacheEntry instance
+          // The entry may have been invalidated (or replaced by a newer update) in the meantime, only our own entry is touched
+          var current = cacheMap.get(month) == updatingEntry;
+
+          // And update the cache entry to either "null" (if generateBody failed or the body doesn't fit into the cache) or a CompletedCacheEntry instance
           if (promise.isCompletedExceptionally()) {
-            log.error("Update for {} failed", month, error);
-            cacheMap.remove(month);
+            if (ticket.isCancelled()) EventLog.info(log, "Update for {} cancelled", month);
+            else log.error("Update for {} failed", month, error);
+            if (current) previousEntry = cacheMap.remove(month);
+          } else if (!body.isCached()) {
+            log.warn("Update for {} completed, but it does not fit into the cache", month);
+            if (current) previousEntry = cacheMap.remove(month);
+          } else if (!current) {
+            EventLog.info(log, "Update for {} completed, but its cache entry has been replaced", month);
+            replacedBody = body;
           } else {
-            log.info("Update for {} completed", month);
-            cacheMap.put(month, new CompletedCacheEntry(body, config.cacheTTL));
+            var ttl = oldHash == null ? oldTTL : adaptTTL(month, oldTTL, oldHash != body.contentHash);
+            EventLog.info(log, "Update for {} completed, caching for {} ms", month, ttl);
+            previousEntry = cacheMap.put(month, new CompletedCacheEntry(body, clock.millis(), ttl));
           }
+
+          // Retain the new body for the listeners if the content is different
+          changed = body != null && (oldHash == null || oldHash != body.contentHash) && body.tryRetain();
         } finally { cacheLock.writeLock().unlock(); }
+
+        // Free the bodies that were replaced (including our own if nothing took it over)
+        release(previousEntry);
+        if (replacedBody != null) replacedBody.release();
+
+        // Notify listeners (outside of the lock)
+        if (changed) {
+          try {
+            notifyListeners(month, body);
+          } finally { body.release(); }
+        }
         return null;
       }, executor);
 
-      // Create new cache entries
-      var newEntry = new PendingCacheEntry(promise);
-      // If we are creating a new cache entry, then use the PendingCacheEntry directly
-      // However, if we are replacing an existing cache entry then use UpdatingCacheEntry
-      var updatingEntry =
-        oldEntry != null
-          ? new UpdatingCacheEntry(oldEntry, newEntry)
-          : newEntry;
+      // Return the updated entry
+      return updatingEntry;
+    } finally { cacheLock.writeLock().unlock(); }
+  }
 
-      // Insert the new entry into the cache
-      cacheMap.put(month, updatingEntry);
+  /**
+   * Remove a month from the cache, so that it is regenerated the next time it is requested.
+   * An update that is already in progress is not cancelled, its result is still cached once it completes.
+   * @param month Month to invalidate.
+   */
+  public void invalidate(Month month) {
+    CacheEntry entry;
+    cacheLock.writeLock().lock(); try {
+      entry = cacheMap.remove(month);
+    } finally { cacheLock.writeLock().unlock(); }
+
+    if (entry != null) EventLog.info(log, "Invalidated {}", month);
+    release(entry);
+  }
+
+  /**
+   * Redownload and regenerate the JSON data for a batch of months, like {@link CalendarJsonProvider#update}.
+   * Months are always downloaded from the calendar source, even in cluster mode, as the owner would answer from its own (possibly stale) cache.
+   * @param months Months to update.
+   * @param concurrency Maximum number of updates in progress at the same time.
+   * @return CompletableFuture that completes with the number of months that were updated successfully.
+   */
+  public CompletableFuture<Integer> updateAll(List<Month> months, int concurrency) {
+    var queue = new ConcurrentLinkedQueue<>(months);
+    var succeeded = new AtomicInteger();
+
+    var workers = new CompletableFuture<?>[Math.min(Math.max(concurrency, 1), months.size())];
+    for (int i = 0; i < workers.length; i++) workers[i] = updateNext(queue, succeeded);
+
+    return CompletableFuture.allOf(workers).thenApply(ignored -> succeeded.get());
+  }
+
+  private CompletableFuture<Void> updateNext(Queue<Month> queue, AtomicInteger succeeded) {
+    var month = queue.poll();
+    if (month == null) return CompletableFuture.completedFuture(null);
 
-      // Return the updated entry's body
-      return updatingEntry.getBody();
+    return updateLocally(month, PriorityExecutor.Priority.BACKGROUND)
+      .handleAsync((body, error) -> {
+        if (error == null) {
+          body.release();
+          succeeded.incrementAndGet();
+        }
+        return null;
+      }, executor)
+      .thenCompose(ignored -> updateNext(queue, succeeded));
+  }
+
+  /**
+   * Encode a body in a format + projection, encoding on the executor if this variant has not been produced for this body yet.
+   * @param body Body to encode, must stay retained until the returned CompletableFuture completes.
+   * @param format Format to encode "body" in.
+   * @param projection Fields of each event to include.
+   * @return CompletableFuture that completes with a retained buffer containing the encoded body, the caller must release it.
+   */
+  public CompletableFuture<ByteBuf> encode(MonthBody body, BodyFormat format, EventProjection projection) {
+    if (body.isEncoded(format, projection))
+      return CompletableFuture.completedFuture(body.get(format, projection));
+    return CompletableFuture.supplyAsync(() -> body.get(format, projection), executor);
+  }
+
+  /**
+   * Get the number of bytes used by cached bodies.
+   * @return Byte count.
+   */
+  public long getCachedBytes() {
+    return bodyAllocator.getUsedBytes();
+  }
+
+  /**
+   * Apply a reloaded configuration without discarding the cache.
+   * A different "hiddenRegex" re-derives the bodies of cached months from their retained events (without redownloading them),
+   * and different TTLs adjust the expiry of every cached month. Everything else is read whenever it is needed,
+   * except for settings that are only used on startup (cluster, allocator, HTTP client and recurrence limit).
+   * @param newConfig New application configuration.
+   */
+  public void reconfigure(Config newConfig) {
+    var oldConfig = config;
+    // Compiled first, so that an invalid expression (see Config#readConfig) can't leave the config half-applied
+    var rehide = !Objects.equals(oldConfig.hiddenRegex, newConfig.hiddenRegex);
+    if (rehide) deserializer.setHiddenRegex(newConfig.hiddenRegex);
+    config = newConfig;
+
+    deserializer.setChunkEvents(newConfig.parseChunkEvents);
+    downloadLimiter.setLimit(newConfig.downloadConcurrency);
+
+    if (rehide) rehide();
+
+    if (
+      oldConfig.cacheTTL != newConfig.cacheTTL ||
+      oldConfig.cacheTTLMin != newConfig.cacheTTLMin ||
+      oldConfig.cacheTTLMax != newConfig.cacheTTLMax
+    ) {
+      retime(oldConfig, newConfig);
+    }
+  }
+
+  // Re-derive the hidden flag of every cached event, replacing (and announcing) the bodies that changed
+  private void rehide() {
+    var entries = new HashMap<Month, CompletedCacheEntry>();
+    cacheLock.readLock().lock(); try {
+      for (var mapEntry : cacheMap.entrySet()) {
+        if (mapEntry.getValue() instanceof CompletedCacheEntry)
+          entries.put(mapEntry.getKey(), (CompletedCacheEntry)mapEntry.getValue());
+      }
+    } finally { cacheLock.readLock().unlock(); }
+
+    var rederived = 0;
+    for (var mapEntry : entries.entrySet()) {
+      var month = mapEntry.getKey();
+      var entry = mapEntry.getValue();
+
+      // Generate the new body outside of the lock, the entry may be replaced in the meantime
+      if (!entry.body.tryRetain()) continue;
+      MonthBody body;
+      try {
+        var events = eventStore.rehide(entry.body.events, deserializer::isHidden);
+        if (events == entry.body.events) continue;
+        body = MonthBody.of(events, bodyAllocator, entry.body.trace);
+      } finally { entry.body.release(); }
+
+      var replaced = false;
+      cacheLock.writeLock().lock(); try {
+        if (cacheMap.get(month) == entry) {
+          if (body.isCached()) {
+            cacheMap.put(month, entry.withBody(body));
+            // Retain the new body for the listeners
+            replaced = body.tryRetain();
+          } else {
+            cacheMap.remove(month);
+          }
+          release(entry);
+        }
+      } finally { cacheLock.writeLock().unlock(); }
+
+      if (replaced) {
+        rederived++;
+        try {
+          notifyListeners(month, body);
+        } finally { body.release(); }
+      } else body.release();
+    }
+
+    log.info("Re-derived {} cached months with the new hidden regex", rederived);
+  }
+
+  // Scale the TTL of every cached month by the change in cacheTTL, within the new bounds
+  private void retime(Config oldConfig, Config newConfig) {
+    cacheLock.writeLock().lock(); try {
+      for (var mapEntry : cacheMap.entrySet()) {
+        if (!(mapEntry.getValue() instanceof CompletedCacheEntry)) continue;
+        var entry = (CompletedCacheEntry)mapEntry.getValue();
+        var ttl =
+          oldConfig.cacheTTL > 0
+            ? (long)(entry.ttl * ((double)newConfig.cacheTTL / oldConfig.cacheTTL))
+            : newConfig.cacheTTL;
+        mapEntry.setValue(entry.withTTL(clampTTL(mapEntry.getKey(), ttl)));
+      }
     } finally { cacheLock.writeLock().unlock(); }
+
+    log.info("Adjusted the expiry of cached months to the new TTLs");
+  }
+
+  private void notifyListeners(Month month, MonthBody body) {
+    for (var listener : updateListeners) {
+      try {
+        listener.onUpdate(month, body);
+      } catch (Throwable listenerError) {
+        log.error("Update listener for {} failed", month, listenerError);
+      }
+    }
+  }
+
+  // Derive a month's next TTL from whether its content changed since the last refresh:
+  // changing months are refreshed twice as often, unchanged months half as often
+  private long adaptTTL(Month month, long ttl, boolean changed) {
+    return clampTTL(month, changed ? ttl / 2 : ttl * 2);
+  }
+
+  // Only past months may grow past cacheTTL
+  private long clampTTL(Month month, long ttl) {
+    var config = this.config;
+    var max =
+      month.getEnd() <= clock.millis()
+        ? config.cacheTTLMax
+        : Math.min(config.cacheTTL, config.cacheTTLMax);
+    return Math.max(Math.min(ttl, max), config.cacheTTLMin);
+  }
+
+  /**
+   * Check if a request carrying the {@link ClusterRing#peerHeader} header really came from another node of the cluster.
+   * @param address Address of the client, may be "null".
+   * @return Boolean indicating if cluster mode is enabled and "address" belongs to one of the peers.
+   */
+  public boolean isPeer(InetAddress address) {
+    return clusterRing != null && clusterRing.isPeer(address);
+  }
+
+  /**
+   * Check if a month's cache entry is valid, meaning {@link CalendarJsonProvider#request} won't start an update for it.
+   * @param month Month to check.
+   * @return Boolean indicating if "month" is cached (or being generated) and has not expired.
+   */
+  public boolean isCached(Month month) {
+    CacheEntry entry;
+    cacheLock.readLock().lock(); try {
+      entry = cacheMap.get(month);
+    } finally { cacheLock.readLock().unlock(); }
+    return entry != null && entry.isValid(clock.millis());
   }
 
-  private CompletableFuture<byte[]> generateBody(Month month) {
+  /**
+   * Check if a month has a cache entry at all (even if it has expired), meaning {@link CalendarJsonProvider#request} won't ask for admission.
+   * @param month Month to check.
+   * @return Boolean indicating if "month" is cached, being generated or has a stale body.
+   */
+  public boolean hasEntry(Month month) {
+    cacheLock.readLock().lock(); try {
+      return cacheMap.containsKey(month);
+    } finally { cacheLock.readLock().unlock(); }
+  }
+
+  /**
+   * Retrieve the last body generated for a month, even if it has expired, without starting an update.
+   * @param month Month to retrieve.
+   * @return Retained calendar month data body (the caller must release it), or "null" if there is no body for "month" in the cache.
+   */
+  public MonthBody requestStale(Month month) {
+    CacheEntry entry;
+    cacheLock.readLock().lock(); try {
+      entry = cacheMap.get(month);
+    } finally { cacheLock.readLock().unlock(); }
+
+    if (entry instanceof UpdatingCacheEntry)
+      entry = ((UpdatingCacheEntry)entry).oldEntry;
+    if (!(entry instanceof CompletedCacheEntry)) return null;
+
+    var body = ((CompletedCacheEntry)entry).body;
+    return body.tryRetain() ? body : null;
+  }
+
+  // Retain the body that "promise" completes with, retrying the request if it was freed (or its update cancelled) in the meantime
+  // Cancelling the returned CompletableFuture releases the body once it arrives
+  private CompletableFuture<MonthBody> acquire(
+    CompletableFuture<MonthBody> promise,
+    Month month,
+    boolean fromPeer,
+    PriorityExecutor.Priority priority
+  ) {
+    var result = new CompletableFuture<MonthBody>();
+    promise.whenComplete((body, error) -> {
+      if (result.isDone()) return;
+      if (error != null) {
+        var cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof CancellationException) forward(request(month, fromPeer, priority), result);
+        else result.completeExceptionally(error);
+      } else if (body.tryRetain()) {
+        if (!result.complete(body)) body.release();
+      } else {
+        forward(request(month, fromPeer, priority), result);
+      }
+    });
+    return result;
+  }
+
+  private static void forward(CompletableFuture<MonthBody> source, CompletableFuture<MonthBody> target) {
+    source.whenComplete((body, error) -> {
+      if (error != null) target.completeExceptionally(error);
+      else if (!target.complete(body)) body.release();
+    });
+    // Pass cancellation on to the source
+    target.whenComplete((body, error) -> {
+      if (target.isCancelled()) source.cancel(false);
+    });
+  }
+
+  // Count the caller as a waiter of a pending update, once every waiter has given up on it the update is cancelled
+  private CompletableFuture<MonthBody> track(
+    Month month,
+    CacheEntry entry,
+    CompletableFuture<MonthBody> result,
+    PriorityExecutor.Priority priority
+  ) {
+    if (!(entry instanceof PendingCacheEntry) || result.isDone()) return result;
+    var pending = (PendingCacheEntry)entry;
+
+    if (priority == PriorityExecutor.Priority.BACKGROUND) {
+      pending.wanted = true;
+      return result;
+    }
+
+    pending.waiters.incrementAndGet();
+    result.whenComplete((body, error) -> {
+      if (pending.waiters.decrementAndGet() == 0 && result.isCancelled()) abandon(month, pending);
+    });
+    return result;
+  }
+
+  // Cancel an update that nobody is waiting on anymore (unless its result is wanted in the cache)
+  private void abandon(Month month, PendingCacheEntry entry) {
+    cacheLock.writeLock().lock(); try {
+      if (entry.wanted || entry.waiters.get() > 0 || cacheMap.get(month) != entry) return;
+      cacheMap.remove(month);
+    } finally { cacheLock.writeLock().unlock(); }
+
+    EventLog.info(log, "Nobody is waiting for {} anymore, cancelling its update", month);
+    entry.ticket.cancel();
+  }
+
+  // Run the remaining tasks of an update in progress as interactive tasks
+  private void promote(CacheEntry entry) {
+    if (entry instanceof PendingCacheEntry)
+      priorityExecutor.promote(((PendingCacheEntry)entry).ticket);
+    else if (entry instanceof UpdatingCacheEntry)
+      promote(((UpdatingCacheEntry)entry).newEntry);
+  }
+
+  // Release the cached bodies held by an entry that has been removed from the cache
+  private static void release(CacheEntry entry) {
+    if (entry instanceof CompletedCacheEntry)
+      ((CompletedCacheEntry)entry).body.release();
+    else if (entry instanceof UpdatingCacheEntry)
+      release(((UpdatingCacheEntry)entry).oldEntry);
+  }
+
+  // Evict the least recently used completed entry to make room in the byte budget
+  private boolean evict() {
+    Month evictedMonth = null;
+    CompletedCacheEntry evictedEntry = null;
+
+    cacheLock.writeLock().lock(); try {
+      for (var mapEntry : cacheMap.entrySet()) {
+        if (!(mapEntry.getValue() instanceof CompletedCacheEntry)) continue;
+        var entry = (CompletedCacheEntry)mapEntry.getValue();
+        if (evictedEntry == null || entry.accessed < evictedEntry.accessed) {
+          evictedMonth = mapEntry.getKey();
+          evictedEntry = entry;
+        }
+      }
+      if (evictedEntry == null) return false;
+      cacheMap.remove(evictedMonth);
+    } finally { cacheLock.writeLock().unlock(); }
+
+    EventLog.info(log, "Evicted {} from the cache", evictedMonth);
+    release(evictedEntry);
+    return true;
+  }
+
+  private CompletableFuture<MonthBody> generateBodyFromPeer(Month month, String owner, PriorityExecutor.Ticket ticket, Trace trace) {
+    var stageExecutor = priorityExecutor.withTicket(ticket);
+    var uri = URI.create(owner + (tenant != null ? "/" + tenant : "") + "/" + month.expression);
+    var download = downloader.download(uri, config.downloadRetrieveTimeout, trace, ClusterRing.peerHeader, clusterRing.self);
+    ticket.onCancel(() -> download.cancel(true));
+    return download
+      .thenApplyAsync(input -> {
+        try (input) {
+          var parse = trace.begin("parse", "body");
+          var json = input.readAllBytes();
+          var events = BodyFormat.JSON.getMapper().readValue(json, Event[].class);
+          parse.end();
+          var store = trace.begin("store");
+          var table = eventStore.store(events);
+          store.end();
+          return MonthBody.of(table, json, bodyAllocator, trace);
+        } catch (IOException error) {
+          throw new UncheckedIOException(error);
+        }
+      }, stageExecutor)
+      // If the owner is unavailable, fall back to downloading the data ourselves
+      .handle((body, error) -> {
+        if (error == null) return CompletableFuture.completedFuture(body);
+        if (ticket.isCancelled()) return CompletableFuture.<MonthBody>failedFuture(error);
+        log.warn("Failed to fetch {} from peer {}, falling back to the calendar source", month, owner, error);
+        return generateBody(month, ticket, trace);
+      })
+      .thenCompose(v -> v);
+  }
+
+  private CompletableFuture<MonthBody> generateBody(Month month, PriorityExecutor.Ticket ticket, Trace trace) {
+    // Every stage is queued by priority, so interactive updates overtake background updates between stages too
+    var stageExecutor = priorityExecutor.withTicket(ticket);
     return CompletableFuture
-      // Download the iCalendar data
+      // Wait until fewer than "downloadConcurrency" downloads are in progress
       .supplyAsync(() -> {
-        var url = config.urlTemplate.replace("$$", month.expression);
-        var uri = URI.create(url);
-        return downloader.download(uri, config.downloadRetrieveTimeout);
-      }, executor)
-      .thenComposeAsync(v -> v, executor)
-      // Deserialize the data
-      .thenComposeAsync(deserializer::deserialize, executor)
-      // Convert the data to JSON and return it
+        checkCancelled(ticket);
+        var permit = downloadLimiter.acquire(ticket);
+        ticket.onCancel(() -> permit.cancel(false));
+        return permit;
+      }, stageExecutor)
+      .thenComposeAsync(v -> v, stageExecutor)
+      // Download + deserialize the iCalendar data, giving the permit back once done
+      .thenComposeAsync(v ->
+        CompletableFuture.<Void>completedFuture(null)
+          .thenCompose(w -> downloadEvents(month, ticket, trace, stageExecutor))
+          .whenComplete((events, error) -> downloadLimiter.release()),
+        stageExecutor
+      )
+      // Store the data compactly, convert it to JSON and return it
       .thenApplyAsync(events -> {
-        try {
-          return objectMapper.writeValueAsBytes(events);
-        } catch (JsonProcessingException error) {
-          throw new CompletionException(error);
-        }
-      }, executor);
+        checkCancelled(ticket);
+        var store = trace.begin("store");
+        var table = eventStore.store(events);
+        store.end();
+        var serialize = trace.begin("serialize");
+        var body = MonthBody.of(table, bodyAllocator, trace);
+        serialize.end();
+        return body;
+      }, stageExecutor);
+  }
+
+  private CompletableFuture<Event[]> downloadEvents(Month month, PriorityExecutor.Ticket ticket, Trace trace, Executor stageExecutor) {
+    checkCancelled(ticket);
+    var url = config.urlTemplate.replace("$$", month.expression);
+    var uri = URI.create(url);
+    var download = downloader.download(uri, config.downloadRetrieveTimeout, trace);
+    ticket.onCancel(() -> download.cancel(true));
+    return download
+      // Deserialize the data (giving up part way through if the update is cancelled)
+      .thenComposeAsync(input -> {
+        var parse = trace.begin("parse", "body", "hide");
+        return deserializer
+          .deserialize(new CancellableInputStream(input, ticket::isCancelled), month, stageExecutor, trace)
+          .whenComplete((events, error) -> parse.end());
+      }, stageExecutor);
+  }
+
+  private static void checkCancelled(PriorityExecutor.Ticket ticket) {
+    if (ticket.isCancelled())
+      throw new CancellationException("Update is no longer wanted");
   }
 }
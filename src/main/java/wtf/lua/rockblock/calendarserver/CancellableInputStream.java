@@ -0,0 +1,67 @@
+package wtf.lua.rockblock.calendarserver;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.function.BooleanSupplier;
+
+/**
+ * CancellableInputStream wraps an {@link InputStream} so that reading from it fails once an operation has been cancelled,
+ * stopping a long-running parse part way through instead of letting it finish for nobody.
+ *
+ * <p>
+ * Copyright (C) 2020 Lua MacDougall
+ * <br/><br/>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <br/><br/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * <br/><br/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see &lt;https://www.gnu.org/licenses/&gt;.
+ * </p>
+ *
+ * @author Lua MacDougall &lt;luawhat@gmail.com&gt;
+ */
+public final class CancellableInputStream extends FilterInputStream {
+  private final BooleanSupplier cancelled;
+
+  /**
+   * Create a new CancellableInputStream instance.
+   * @param input Stream to read from.
+   * @param cancelled Function that returns "true" once reading should fail.
+   */
+  public CancellableInputStream(InputStream input, BooleanSupplier cancelled) {
+    super(input);
+    this.cancelled = cancelled;
+  }
+
+  @Override
+  public int read() throws IOException {
+    check();
+    return super.read();
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    check();
+    return super.read(buffer, offset, length);
+  }
+
+  @Override
+  public long skip(long count) throws IOException {
+    check();
+    return super.skip(count);
+  }
+
+  private void check() throws IOException {
+    if (cancelled.getAsBoolean())
+      throw new InterruptedIOException("Cancelled");
+  }
+}
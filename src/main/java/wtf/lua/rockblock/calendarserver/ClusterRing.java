@@ -0,0 +1,133 @@
+package wtf.lua.rockblock.calendarserver;
+
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ClusterRing assigns every {@link Month} to an owner node out of a static list of peers using consistent hashing.
+ * Only the owner of a month downloads it from the calendar source, all other nodes fetch the month from the owner.
+ *
+ * <p>
+ * Copyright (C) 2020 Lua MacDougall
+ * <br/><br/>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <br/><br/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * <br/><br/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see &lt;https://www.gnu.org/licenses/&gt;.
+ * </p>
+ *
+ * @author Lua MacDougall &lt;luawhat@gmail.com&gt;
+ */
+public final class ClusterRing {
+  private static final Logger log = LoggerFactory.getLogger(ClusterRing.class);
+
+  /** HTTP header sent with requests between peers, peers never forward requests carrying this header. */
+  public static final String peerHeader = "X-CalendarServer-Peer";
+
+  // Number of points each peer occupies on the ring, more points = more even distribution
+  private static final int virtualNodes = 128;
+
+  private final NavigableMap<Integer, String> ring;
+  // Addresses of every peer, resolved once so that checking a request doesn't block on DNS
+  private final Set<InetAddress> addresses;
+
+  /** Base URL of this node. */
+  public final String self;
+
+  /**
+   * Create a new ClusterRing instance.
+   * @param peers Base URLs of all nodes in the cluster (including this one), EX: "http://10.0.0.1:2000".
+   * @param self Base URL of this node, must be present in "peers".
+   */
+  public ClusterRing(List<String> peers, String self) {
+    this.self = normalize(self);
+
+    ring = new TreeMap<>();
+    addresses = new HashSet<>();
+    for (var peer : peers) {
+      var normalized = normalize(peer);
+      for (int i = 0; i < virtualNodes; i++) {
+        ring.put(hash(normalized + "#" + i), normalized);
+      }
+      addresses.addAll(resolve(normalized));
+    }
+  }
+
+  /**
+   * Check if a request came from one of the peers, only those may send the {@link ClusterRing#peerHeader} header.
+   * Peers are recognized by the addresses their base URLs resolved to when this ring was created.
+   * @param address Address of the client, may be "null".
+   * @return Is "address" the address of a peer?
+   */
+  public boolean isPeer(InetAddress address) {
+    return address != null && addresses.contains(address);
+  }
+
+  /**
+   * Find the owner of a month.
+   * @param month Month to look up.
+   * @return Base URL of the node that owns "month".
+   */
+  public String owner(Month month) {
+    var entry = ring.ceilingEntry(hash(month.expression));
+    if (entry == null) entry = ring.firstEntry();
+    return entry.getValue();
+  }
+
+  /**
+   * Check if this node owns a month.
+   * @param month Month to look up.
+   * @return Is this node the owner of "month"?
+   */
+  public boolean isOwner(Month month) {
+    return owner(month).equals(self);
+  }
+
+  private static List<InetAddress> resolve(String url) {
+    try {
+      var host = URI.create(url).getHost();
+      if (host != null) return List.of(InetAddress.getAllByName(host));
+      log.warn("Peer {} has no host, requests from it are treated as client requests", url);
+    } catch (IllegalArgumentException | UnknownHostException error) {
+      log.warn("Failed to resolve peer {}, requests from it are treated as client requests", url, error);
+    }
+    return List.of();
+  }
+
+  private static String normalize(String url) {
+    return url.replaceAll("/+$", "");
+  }
+
+  private static int hash(String key) {
+    try {
+      var digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+      return
+        (digest[0] & 0xFF) << 24 |
+        (digest[1] & 0xFF) << 16 |
+        (digest[2] & 0xFF) << 8 |
+        (digest[3] & 0xFF);
+    } catch (NoSuchAlgorithmException error) {
+      throw new IllegalStateException(error);
+    }
+  }
+}
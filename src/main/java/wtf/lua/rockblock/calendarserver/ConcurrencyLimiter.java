@@ -0,0 +1,140 @@
+package wtf.lua.rockblock.calendarserver;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * ConcurrencyLimiter limits how many operations (like downloads from the calendar source) are in progress at the same time.
+ * Operations wait for a permit without blocking a thread, and waiting operations that have a client waiting on them
+ * ({@link PriorityExecutor.Priority#INTERACTIVE}) are let through before background operations.
+ *
+ * <p>
+ * Copyright (C) 2020 Lua MacDougall
+ * <br/><br/>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <br/><br/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * <br/><br/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see &lt;https://www.gnu.org/licenses/&gt;.
+ * </p>
+ *
+ * @author Lua MacDougall &lt;luawhat@gmail.com&gt;
+ */
+public final class ConcurrencyLimiter {
+  private static final class Waiter {
+    private final PriorityExecutor.Ticket ticket;
+    private final CompletableFuture<Void> promise;
+
+    public Waiter(PriorityExecutor.Ticket ticket, CompletableFuture<Void> promise) {
+      this.ticket = ticket;
+      this.promise = promise;
+    }
+  }
+
+  // Everything below is guarded by "this"
+  private int limit;
+  private int active;
+  private final Deque<Waiter> waiting;
+
+  /**
+   * Create a new ConcurrencyLimiter instance.
+   * @param limit Maximum number of operations in progress at the same time, "0" for no limit.
+   */
+  public ConcurrencyLimiter(int limit) {
+    this.limit = limit;
+    waiting = new ArrayDeque<>();
+  }
+
+  /**
+   * Change the maximum number of operations in progress at the same time, letting waiting operations through if it was raised.
+   * @param limit Maximum number of operations in progress at the same time, "0" for no limit.
+   */
+  public void setLimit(int limit) {
+    synchronized (this) {
+      this.limit = limit;
+    }
+    grant();
+  }
+
+  /**
+   * Wait for a permit to start an operation, the permit must be given back with {@link ConcurrencyLimiter#release} once the operation is done.
+   * @param ticket Ticket of the operation, decides the order waiting operations are let through in.
+   * @return CompletableFuture that completes once the operation may start, cancel it to stop waiting (without taking a permit).
+   */
+  public CompletableFuture<Void> acquire(PriorityExecutor.Ticket ticket) {
+    synchronized (this) {
+      if (limit <= 0 || active < limit) {
+        active++;
+        return CompletableFuture.completedFuture(null);
+      }
+      var promise = new CompletableFuture<Void>();
+      waiting.add(new Waiter(ticket, promise));
+      return promise;
+    }
+  }
+
+  /**
+   * Give back a permit returned by {@link ConcurrencyLimiter#acquire}.
+   */
+  public void release() {
+    synchronized (this) {
+      active--;
+    }
+    grant();
+  }
+
+  /**
+   * Get the number of operations in progress.
+   * @return Operation count.
+   */
+  public synchronized int getActive() {
+    return active;
+  }
+
+  /**
+   * Get the number of operations waiting for a permit.
+   * @return Operation count.
+   */
+  public synchronized int getWaiting() {
+    return waiting.size();
+  }
+
+  // Hand out free permits to waiting operations, interactive operations first
+  private void grant() {
+    while (true) {
+      Waiter next;
+      synchronized (this) {
+        if (limit > 0 && active >= limit) return;
+        next = poll();
+        if (next == null) return;
+        active++;
+      }
+      // Stopped waiting in the meantime? Then the permit goes to the next one
+      if (!next.promise.complete(null)) {
+        synchronized (this) {
+          active--;
+        }
+      }
+    }
+  }
+
+  private Waiter poll() {
+    waiting.removeIf(waiter -> waiter.promise.isDone());
+    for (var iterator = waiting.iterator(); iterator.hasNext();) {
+      var waiter = iterator.next();
+      if (waiter.ticket.getPriority() == PriorityExecutor.Priority.INTERACTIVE) {
+        iterator.remove();
+        return waiter;
+      }
+    }
+    return waiting.poll();
+  }
+}
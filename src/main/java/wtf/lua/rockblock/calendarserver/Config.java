@@ -2,9 +2,15 @@ package wtf.lua.rockblock.calendarserver;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.JsonNode;
 
 /**
  * Config represents the application configuration. Instances of Config are
@@ -29,6 +35,66 @@ public final class Config {
   public final int yearMin;
   /** Maximum acceptable year value (inclusive). If "yearMin" or "yearMax" are less than 0, all years from 0000 to 9999 are acceptable. */
   public final int yearMax;
+  /** Base URLs of all nodes in the cluster (including this one). If empty or "clusterSelf" is "null", cluster mode is disabled. */
+  public final List<String> clusterPeers;
+  /** Base URL of this node as it appears in "clusterPeers". This field can also be "null". */
+  public final String clusterSelf;
+  /** Maximum number of occurrences of a single recurring event within one month. */
+  public final int recurrenceLimit;
+  /** Store cached response bodies in pooled direct (off-heap) memory instead of on the heap? */
+  public final boolean cacheOffHeap;
+  /** Maximum number of bytes used by cached response bodies, least recently used months are evicted once it is reached. "0" means no limit. */
+  public final long cacheMaxBytes;
+  /** Shortest time a month whose content keeps changing should be stored in the cache for (in milliseconds). */
+  public final long cacheTTLMin;
+  /** Longest time a past month whose content never changes should be stored in the cache for (in milliseconds). */
+  public final long cacheTTLMax;
+  /** How many months before the current month should be cached on startup? */
+  public final int warmupMonthsBefore;
+  /** How many months after the current month should be cached on startup? The current month itself is cached unless this is negative. */
+  public final int warmupMonthsAfter;
+  /** How many months may be fetched at the same time while warming up or refreshing the cache? */
+  public final int warmupConcurrency;
+  /** Bearer token that authenticates requests to the admin API, "null" disables the admin API. */
+  public final String adminToken;
+  /**
+   * How long to wait for a month's data before responding with stale data or a 504 error (in milliseconds)? "0" waits as long as the download takes.
+   * A deadline shorter than {@link Config#downloadRetrieveTimeout} answers slow downloads that would still have succeeded with a 504 error
+   * (unless there is stale data), the download keeps running in the background and caches the month for the next request.
+   */
+  public final long responseDeadline;
+  /** Ask the calendar source for gzip/deflate compressed responses? */
+  public final boolean downloadCompression;
+  /** Use HTTP/2 (falling back to HTTP/1.1 if the calendar source doesn't support it) when downloading? */
+  public final boolean downloadHttp2;
+  /** Number of VEVENTs per chunk when splitting large feeds to parse them in parallel, "0" parses every feed on a single thread. */
+  public final int parseChunkEvents;
+  /** Directory that pre-rendered months are written to (by the "prerender" command) and served from, or "null" to disable. */
+  public final String prerenderDirectory;
+  /** Maximum number of downloads from the calendar source in progress at the same time (per tenant), "0" means no limit. */
+  public final int downloadConcurrency;
+  /** Additional calendars served under "/&lt;name&gt;/", keyed by name. Their configs are merged with this one and never have tenants of their own. */
+  public final Map<String, Config> tenants;
+  /** How many uncached months a single client (IP address) may request per second, "0" means no limit. */
+  public final int admissionClientRate;
+  /** How many uncached months a single client may request at once before being limited to "admissionClientRate", "0" uses "admissionClientRate". */
+  public final int admissionClientBurst;
+  /** How many uncached months all clients together may request per second, "0" means no limit. */
+  public final int admissionGlobalRate;
+  /** Maximum number of clients whose request rate is tracked, the least recently seen clients are forgotten first. */
+  public final int admissionClients;
+  /** How long a connection may go without a request (in milliseconds) before it is closed, "0" keeps idle connections open forever. */
+  public final long idleTimeout;
+  /** Maximum number of open connections, new connections are closed straight away once it is reached. "0" means no limit. */
+  public final int maxConnections;
+  /** File that an access log (one JSON object per response) is written to, "-" for standard output or "null" to disable it. */
+  public final String accessLog;
+  /** Share of responses (between 0 and 1) that are written to the access log. */
+  public final double accessLogSampleRate;
+  /** Number of access log entries (and of log messages) that may wait to be written before new ones are dropped. */
+  public final int logBufferSize;
+  /** Send a "Server-Timing" header with the cache status and the time of each stage with every response with calendar month data? */
+  public final boolean serverTiming;
 
   /** Config instance with default values. */
   public static final Config defaultConfig = new Config(
@@ -40,7 +106,35 @@ public final class Config {
     /* urlTemplate             */ "https://demo.theeventscalendar.com/events/$$/?ical=1",
     /* hiddenRegex             */ null,
     /* yearMin                 */ -1,
-    /* yearMax                 */ -1
+    /* yearMax                 */ -1,
+    /* clusterPeers            */ List.of(),
+    /* clusterSelf             */ null,
+    /* recurrenceLimit         */ 500,
+    /* cacheOffHeap            */ false,
+    /* cacheMaxBytes           */ 0,
+    /* cacheTTLMin             */ 300000,  // 5 minutes
+    /* cacheTTLMax             */ 86400000, // 24 hours
+    /* warmupMonthsBefore      */ 0,
+    /* warmupMonthsAfter       */ 0,
+    /* warmupConcurrency       */ 4,
+    /* adminToken              */ null,
+    /* responseDeadline        */ 0,
+    /* downloadCompression     */ true,
+    /* downloadHttp2           */ false,
+    /* parseChunkEvents        */ 0,
+    /* prerenderDirectory      */ null,
+    /* downloadConcurrency     */ 8,
+    /* tenants                 */ Map.of(),
+    /* admissionClientRate     */ 0,
+    /* admissionClientBurst    */ 0,
+    /* admissionGlobalRate     */ 0,
+    /* admissionClients        */ 65536,
+    /* idleTimeout             */ 0,
+    /* maxConnections          */ 0,
+    /* accessLog               */ null,
+    /* accessLogSampleRate     */ 1,
+    /* logBufferSize           */ 8192,
+    /* serverTiming            */ false
   );
 
   /**
@@ -54,6 +148,34 @@ public final class Config {
    * @param hiddenRegex             {@link Config#hiddenRegex}
    * @param yearMin                 {@link Config#yearMin}
    * @param yearMax                 {@link Config#yearMax}
+   * @param clusterPeers            {@link Config#clusterPeers}
+   * @param clusterSelf             {@link Config#clusterSelf}
+   * @param recurrenceLimit         {@link Config#recurrenceLimit}
+   * @param cacheOffHeap            {@link Config#cacheOffHeap}
+   * @param cacheMaxBytes           {@link Config#cacheMaxBytes}
+   * @param cacheTTLMin             {@link Config#cacheTTLMin}
+   * @param cacheTTLMax             {@link Config#cacheTTLMax}
+   * @param warmupMonthsBefore      {@link Config#warmupMonthsBefore}
+   * @param warmupMonthsAfter       {@link Config#warmupMonthsAfter}
+   * @param warmupConcurrency       {@link Config#warmupConcurrency}
+   * @param adminToken              {@link Config#adminToken}
+   * @param responseDeadline        {@link Config#responseDeadline}
+   * @param downloadCompression     {@link Config#downloadCompression}
+   * @param downloadHttp2           {@link Config#downloadHttp2}
+   * @param parseChunkEvents        {@link Config#parseChunkEvents}
+   * @param prerenderDirectory      {@link Config#prerenderDirectory}
+   * @param downloadConcurrency     {@link Config#downloadConcurrency}
+   * @param tenants                 {@link Config#tenants}
+   * @param admissionClientRate     {@link Config#admissionClientRate}
+   * @param admissionClientBurst    {@link Config#admissionClientBurst}
+   * @param admissionGlobalRate     {@link Config#admissionGlobalRate}
+   * @param admissionClients        {@link Config#admissionClients}
+   * @param idleTimeout             {@link Config#idleTimeout}
+   * @param maxConnections          {@link Config#maxConnections}
+   * @param accessLog               {@link Config#accessLog}
+   * @param accessLogSampleRate     {@link Config#accessLogSampleRate}
+   * @param logBufferSize           {@link Config#logBufferSize}
+   * @param serverTiming            {@link Config#serverTiming}
    */
   public Config(
     int port,
@@ -64,7 +186,35 @@ public final class Config {
     String urlTemplate,
     String hiddenRegex,
     int yearMin,
-    int yearMax
+    int yearMax,
+    List<String> clusterPeers,
+    String clusterSelf,
+    int recurrenceLimit,
+    boolean cacheOffHeap,
+    long cacheMaxBytes,
+    long cacheTTLMin,
+    long cacheTTLMax,
+    int warmupMonthsBefore,
+    int warmupMonthsAfter,
+    int warmupConcurrency,
+    String adminToken,
+    long responseDeadline,
+    boolean downloadCompression,
+    boolean downloadHttp2,
+    int parseChunkEvents,
+    String prerenderDirectory,
+    int downloadConcurrency,
+    Map<String, Config> tenants,
+    int admissionClientRate,
+    int admissionClientBurst,
+    int admissionGlobalRate,
+    int admissionClients,
+    long idleTimeout,
+    int maxConnections,
+    String accessLog,
+    double accessLogSampleRate,
+    int logBufferSize,
+    boolean serverTiming
   ) {
     this.port = port;
     this.cors = cors;
@@ -75,9 +225,52 @@ public final class Config {
     this.hiddenRegex = hiddenRegex;
     this.yearMin = yearMin;
     this.yearMax = yearMax;
+    this.clusterPeers = List.copyOf(clusterPeers);
+    this.clusterSelf = clusterSelf;
+    this.recurrenceLimit = recurrenceLimit;
+    this.cacheOffHeap = cacheOffHeap;
+    this.cacheMaxBytes = cacheMaxBytes;
+    this.cacheTTLMin = cacheTTLMin;
+    this.cacheTTLMax = cacheTTLMax;
+    this.warmupMonthsBefore = warmupMonthsBefore;
+    this.warmupMonthsAfter = warmupMonthsAfter;
+    this.warmupConcurrency = warmupConcurrency;
+    this.adminToken = adminToken;
+    this.responseDeadline = responseDeadline;
+    this.downloadCompression = downloadCompression;
+    this.downloadHttp2 = downloadHttp2;
+    this.parseChunkEvents = parseChunkEvents;
+    this.prerenderDirectory = prerenderDirectory;
+    this.downloadConcurrency = downloadConcurrency;
+    this.tenants = tenants;
+    this.admissionClientRate = admissionClientRate;
+    this.admissionClientBurst = admissionClientBurst;
+    this.admissionGlobalRate = admissionGlobalRate;
+    this.admissionClients = admissionClients;
+    this.idleTimeout = idleTimeout;
+    this.maxConnections = maxConnections;
+    this.accessLog = accessLog;
+    this.accessLogSampleRate = accessLogSampleRate;
+    this.logBufferSize = logBufferSize;
+    this.serverTiming = serverTiming;
   }
 
-  private static final ObjectMapper objectMapper = new ObjectMapper();
+  /**
+   * Is cluster mode enabled?
+   * @return Boolean indicating if both "clusterPeers" and "clusterSelf" are set.
+   */
+  public boolean isClustered() {
+    return !clusterPeers.isEmpty() && clusterSelf != null;
+  }
+
+  /**
+   * Is a year within "yearMin" and "yearMax"?
+   * @param year Year to check.
+   * @return Boolean indicating if months of "year" may be requested.
+   */
+  public boolean isYearAllowed(int year) {
+    return yearMin < 0 || yearMax < 0 || (year >= yearMin && year <= yearMax);
+  }
 
   /**
    * Create a new instance of Config using data from a JSON file (usually "config.json").
@@ -85,9 +278,42 @@ public final class Config {
    * @return Config instance.
    * @throws IOException If an error occurs while reading from the file.
    * @throws JsonProcessingException If an error occurs while deserializing the JSON.
+   * @throws IOException If a setting has an invalid value (like a "hiddenRegex" that doesn't compile), nothing is applied in that case.
    */
   public static Config readConfig(String path) throws IOException, JsonProcessingException {
-    var object = objectMapper.readTree(new File(path));
+    var object = BodyFormat.JSON.getMapper().readTree(new File(path));
+
+    // Tenants are merged with the top level config, so it has to be read (without tenants) first
+    var base = readConfig(object, defaultConfig, Map.of());
+    var tenants = new LinkedHashMap<String, Config>();
+
+    var object$tenants = object.get("tenants");
+    if (object$tenants != null && object$tenants.isObject()) {
+      var fields = object$tenants.fields();
+      while (fields.hasNext()) {
+        var field = fields.next();
+        if (field.getValue().isObject()) tenants.put(field.getKey(), readConfig(field.getValue(), base, Map.of()));
+      }
+    }
+
+    var config = readConfig(object, defaultConfig, tenants);
+    validate(config);
+    for (var tenant : tenants.values()) validate(tenant);
+    return config;
+  }
+
+  // Reject values that would only fail once they are applied, so that a reload is applied either completely or not at all
+  private static void validate(Config config) throws IOException {
+    if (config.hiddenRegex != null && !config.hiddenRegex.isEmpty()) {
+      try {
+        Pattern.compile(config.hiddenRegex);
+      } catch (PatternSyntaxException error) {
+        throw new IOException("Invalid \"hiddenRegex\": " + error.getDescription(), error);
+      }
+    }
+  }
+
+  private static Config readConfig(JsonNode object, Config defaults, Map<String, Config> tenants) {
 
     var object$port                    = object.get("port");
     var object$cors                    = object.get("cors");
@@ -98,46 +324,197 @@ public final class Config {
     var object$hiddenRegex             = object.get("hiddenRegex");
     var object$yearMin                 = object.get("yearMin");
     var object$yearMax                 = object.get("yearMax");
+    var object$clusterPeers            = object.get("clusterPeers");
+    var object$clusterSelf             = object.get("clusterSelf");
+    var object$recurrenceLimit         = object.get("recurrenceLimit");
+    var object$cacheOffHeap            = object.get("cacheOffHeap");
+    var object$cacheMaxBytes           = object.get("cacheMaxBytes");
+    var object$cacheTTLMin             = object.get("cacheTTLMin");
+    var object$cacheTTLMax             = object.get("cacheTTLMax");
+    var object$warmupMonthsBefore      = object.get("warmupMonthsBefore");
+    var object$warmupMonthsAfter       = object.get("warmupMonthsAfter");
+    var object$warmupConcurrency       = object.get("warmupConcurrency");
+    var object$adminToken              = object.get("adminToken");
+    var object$responseDeadline        = object.get("responseDeadline");
+    var object$downloadCompression     = object.get("downloadCompression");
+    var object$downloadHttp2           = object.get("downloadHttp2");
+    var object$parseChunkEvents        = object.get("parseChunkEvents");
+    var object$prerenderDirectory      = object.get("prerenderDirectory");
+    var object$downloadConcurrency     = object.get("downloadConcurrency");
+    var object$admissionClientRate     = object.get("admissionClientRate");
+    var object$admissionClientBurst    = object.get("admissionClientBurst");
+    var object$admissionGlobalRate     = object.get("admissionGlobalRate");
+    var object$admissionClients        = object.get("admissionClients");
+    var object$idleTimeout             = object.get("idleTimeout");
+    var object$maxConnections          = object.get("maxConnections");
+    var object$accessLog               = object.get("accessLog");
+    var object$accessLogSampleRate     = object.get("accessLogSampleRate");
+    var object$logBufferSize           = object.get("logBufferSize");
+    var object$serverTiming            = object.get("serverTiming");
 
     return new Config(
       // "port"
       object$port != null && object$port.canConvertToInt()
         ? object$port.asInt()
-        : defaultConfig.port,
+        : defaults.port,
       // "cors"
       object$cors != null && object$cors.isBoolean()
         ? object$cors.asBoolean()
-        : defaultConfig.cors,
+        : defaults.cors,
       // "cacheTTL"
       object$cacheTTL != null && object$cacheTTL.canConvertToLong()
         ? object$cacheTTL.asLong()
-        : defaultConfig.cacheTTL,
+        : defaults.cacheTTL,
       // "downloadConnectTimeout"
       object$downloadConnectTimeout != null && object$downloadConnectTimeout.canConvertToLong()
         ? object$downloadConnectTimeout.asLong()
-        : defaultConfig.downloadConnectTimeout,
+        : defaults.downloadConnectTimeout,
       // "downloadRetrieveTimeout"
       object$downloadRetrieveTimeout != null && object$downloadRetrieveTimeout.canConvertToLong()
         ? object$downloadRetrieveTimeout.asLong()
-        : defaultConfig.downloadRetrieveTimeout,
+        : defaults.downloadRetrieveTimeout,
       // "urlTemplate"
       object$urlTemplate != null && object$urlTemplate.isTextual()
         ? object$urlTemplate.asText()
-        : defaultConfig.urlTemplate,
+        : defaults.urlTemplate,
       // "hiddenRegex"
       object$hiddenRegex != null && object$hiddenRegex.isTextual()
         ? object$hiddenRegex.asText()
         : object$hiddenRegex != null && object$hiddenRegex.isNull()
           ? null
-          : defaultConfig.hiddenRegex,
+          : defaults.hiddenRegex,
       // "yearMin"
       object$yearMin != null && object$yearMin.canConvertToInt()
         ? object$yearMin.asInt()
-        : defaultConfig.yearMin,
+        : defaults.yearMin,
       // "yearMax"
       object$yearMax != null && object$yearMax.canConvertToInt()
         ? object$yearMax.asInt()
-        : defaultConfig.yearMax
+        : defaults.yearMax,
+      // "clusterPeers"
+      object$clusterPeers != null && object$clusterPeers.isArray()
+        ? readStringList(object$clusterPeers)
+        : defaults.clusterPeers,
+      // "clusterSelf"
+      object$clusterSelf != null && object$clusterSelf.isTextual()
+        ? object$clusterSelf.asText()
+        : defaults.clusterSelf,
+      // "recurrenceLimit"
+      object$recurrenceLimit != null && object$recurrenceLimit.canConvertToInt()
+        ? object$recurrenceLimit.asInt()
+        : defaults.recurrenceLimit,
+      // "cacheOffHeap"
+      object$cacheOffHeap != null && object$cacheOffHeap.isBoolean()
+        ? object$cacheOffHeap.asBoolean()
+        : defaults.cacheOffHeap,
+      // "cacheMaxBytes"
+      object$cacheMaxBytes != null && object$cacheMaxBytes.canConvertToLong()
+        ? object$cacheMaxBytes.asLong()
+        : defaults.cacheMaxBytes,
+      // "cacheTTLMin"
+      object$cacheTTLMin != null && object$cacheTTLMin.canConvertToLong()
+        ? object$cacheTTLMin.asLong()
+        : defaults.cacheTTLMin,
+      // "cacheTTLMax"
+      object$cacheTTLMax != null && object$cacheTTLMax.canConvertToLong()
+        ? object$cacheTTLMax.asLong()
+        : defaults.cacheTTLMax,
+      // "warmupMonthsBefore"
+      object$warmupMonthsBefore != null && object$warmupMonthsBefore.canConvertToInt()
+        ? object$warmupMonthsBefore.asInt()
+        : defaults.warmupMonthsBefore,
+      // "warmupMonthsAfter"
+      object$warmupMonthsAfter != null && object$warmupMonthsAfter.canConvertToInt()
+        ? object$warmupMonthsAfter.asInt()
+        : defaults.warmupMonthsAfter,
+      // "warmupConcurrency"
+      object$warmupConcurrency != null && object$warmupConcurrency.canConvertToInt()
+        ? object$warmupConcurrency.asInt()
+        : defaults.warmupConcurrency,
+      // "adminToken"
+      object$adminToken != null && object$adminToken.isTextual()
+        ? object$adminToken.asText()
+        : object$adminToken != null && object$adminToken.isNull()
+          ? null
+          : defaults.adminToken,
+      // "responseDeadline"
+      object$responseDeadline != null && object$responseDeadline.canConvertToLong()
+        ? object$responseDeadline.asLong()
+        : defaults.responseDeadline,
+      // "downloadCompression"
+      object$downloadCompression != null && object$downloadCompression.isBoolean()
+        ? object$downloadCompression.asBoolean()
+        : defaults.downloadCompression,
+      // "downloadHttp2"
+      object$downloadHttp2 != null && object$downloadHttp2.isBoolean()
+        ? object$downloadHttp2.asBoolean()
+        : defaults.downloadHttp2,
+      // "parseChunkEvents"
+      object$parseChunkEvents != null && object$parseChunkEvents.canConvertToInt()
+        ? object$parseChunkEvents.asInt()
+        : defaults.parseChunkEvents,
+      // "prerenderDirectory"
+      object$prerenderDirectory != null && object$prerenderDirectory.isTextual()
+        ? object$prerenderDirectory.asText()
+        : object$prerenderDirectory != null && object$prerenderDirectory.isNull()
+          ? null
+          : defaults.prerenderDirectory,
+      // "downloadConcurrency"
+      object$downloadConcurrency != null && object$downloadConcurrency.canConvertToInt()
+        ? object$downloadConcurrency.asInt()
+        : defaults.downloadConcurrency,
+      // "tenants"
+      tenants,
+      // "admissionClientRate"
+      object$admissionClientRate != null && object$admissionClientRate.canConvertToInt()
+        ? object$admissionClientRate.asInt()
+        : defaults.admissionClientRate,
+      // "admissionClientBurst"
+      object$admissionClientBurst != null && object$admissionClientBurst.canConvertToInt()
+        ? object$admissionClientBurst.asInt()
+        : defaults.admissionClientBurst,
+      // "admissionGlobalRate"
+      object$admissionGlobalRate != null && object$admissionGlobalRate.canConvertToInt()
+        ? object$admissionGlobalRate.asInt()
+        : defaults.admissionGlobalRate,
+      // "admissionClients"
+      object$admissionClients != null && object$admissionClients.canConvertToInt()
+        ? object$admissionClients.asInt()
+        : defaults.admissionClients,
+      // "idleTimeout"
+      object$idleTimeout != null && object$idleTimeout.canConvertToLong()
+        ? object$idleTimeout.asLong()
+        : defaults.idleTimeout,
+      // "maxConnections"
+      object$maxConnections != null && object$maxConnections.canConvertToInt()
+        ? object$maxConnections.asInt()
+        : defaults.maxConnections,
+      // "accessLog"
+      object$accessLog != null && object$accessLog.isTextual()
+        ? object$accessLog.asText()
+        : object$accessLog != null && object$accessLog.isNull()
+          ? null
+          : defaults.accessLog,
+      // "accessLogSampleRate"
+      object$accessLogSampleRate != null && object$accessLogSampleRate.isNumber()
+        ? object$accessLogSampleRate.asDouble()
+        : defaults.accessLogSampleRate,
+      // "logBufferSize"
+      object$logBufferSize != null && object$logBufferSize.canConvertToInt()
+        ? object$logBufferSize.asInt()
+        : defaults.logBufferSize,
+      // "serverTiming"
+      object$serverTiming != null && object$serverTiming.isBoolean()
+        ? object$serverTiming.asBoolean()
+        : defaults.serverTiming
     );
   }
+
+  private static List<String> readStringList(JsonNode array) {
+    var list = new ArrayList<String>();
+    for (var element : array) {
+      if (element.isTextual()) list.add(element.asText());
+    }
+    return list;
+  }
 }
@@ -0,0 +1,152 @@
+package wtf.lua.rockblock.calendarserver;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ConfigWatcher holds the current {@link Config} and reloads it whenever the config file changes.
+ * Each reload replaces the whole Config instance at once, so readers always see a consistent configuration.
+ *
+ * <p>
+ * Copyright (C) 2020 Lua MacDougall
+ * <br/><br/>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <br/><br/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * <br/><br/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see &lt;https://www.gnu.org/licenses/&gt;.
+ * </p>
+ *
+ * @author Lua MacDougall &lt;luawhat@gmail.com&gt;
+ */
+public final class ConfigWatcher {
+  private static final Logger log = LoggerFactory.getLogger(ConfigWatcher.class);
+
+  // Time in milliseconds to wait for an editor to finish writing the file before reading it
+  private static final long settleDelay = 200;
+
+  /**
+   * Listener is notified after the config has been reloaded.
+   */
+  public static interface Listener {
+    /**
+     * Called after the config has been replaced.
+     * @param oldConfig Previous configuration.
+     * @param newConfig New configuration.
+     */
+    public void onReload(Config oldConfig, Config newConfig);
+  }
+
+  private final Path path;
+  private final List<Listener> listeners;
+
+  private volatile Config config;
+
+  /**
+   * Create a new ConfigWatcher instance.
+   * @param path Path to the config file.
+   * @param config Initial configuration (usually read from "path").
+   */
+  public ConfigWatcher(String path, Config config) {
+    this.path = Paths.get(path).toAbsolutePath();
+    this.config = config;
+    listeners = new CopyOnWriteArrayList<>();
+  }
+
+  /**
+   * Get the current configuration.
+   * @return Config instance.
+   */
+  public Config get() {
+    return config;
+  }
+
+  /**
+   * Register a listener that will be notified whenever the config is reloaded.
+   * @param listener Listener to add.
+   */
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Start watching the config file on a background (daemon) thread.
+   */
+  public void start() {
+    var thread = new Thread(this::watch, "config-watcher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Read the config file again and notify the listeners, the current config is kept if the file can't be read.
+   */
+  public void reload() {
+    Config newConfig;
+    try {
+      newConfig = Config.readConfig(path.toString());
+    } catch (IOException error) {
+      log.warn("Failed to reload the config file, keeping the current config", error);
+      return;
+    }
+
+    Config oldConfig;
+    synchronized (this) {
+      oldConfig = config;
+      config = newConfig;
+    }
+    log.info("Reloaded config from {}", path);
+
+    for (var listener : listeners) {
+      try {
+        listener.onReload(oldConfig, newConfig);
+      } catch (Throwable error) {
+        log.error("Config listener failed", error);
+      }
+    }
+  }
+
+  private void watch() {
+    try (var watchService = FileSystems.getDefault().newWatchService()) {
+      path.getParent().register(
+        watchService,
+        StandardWatchEventKinds.ENTRY_CREATE,
+        StandardWatchEventKinds.ENTRY_MODIFY
+      );
+      log.info("Watching {} for changes", path);
+
+      while (true) {
+        var key = watchService.take();
+        Thread.sleep(settleDelay);
+
+        var changed = false;
+        for (var event : key.pollEvents()) {
+          if (path.getFileName().equals(event.context())) changed = true;
+        }
+        key.reset();
+
+        if (changed) reload();
+      }
+    } catch (InterruptedException | ClosedWatchServiceException error) {
+      // Stopped
+    } catch (IOException error) {
+      log.error("Failed to watch the config file, changes will not be reloaded", error);
+    }
+  }
+}
@@ -1,9 +1,17 @@
 package wtf.lua.rockblock.calendarserver;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.Executor;
@@ -14,9 +22,13 @@ import biweekly.ICalendar;
 import biweekly.component.VEvent;
 import biweekly.property.ValuedProperty;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
  * Deserializer is used to deserialize iCalendar data (VCALENDAR objects) to retrieve arrays of {@link Event}s (VEVENT objects).
  * Additionally, it can automatically set the {@link Event#hidden} field by checking if the event summary matches a regular expression.
+ * Recurring events are expanded into one {@link Event} per occurrence within the requested month using a {@link RecurrenceExpander}.
  *
  * <p>
  * Copyright (C) 2020 Lua MacDougall
@@ -38,37 +50,151 @@ import biweekly.property.ValuedProperty;
  * @author Lua MacDougall &lt;luawhat@gmail.com&gt;
  */
 public final class Deserializer {
+  private static final Logger log = LoggerFactory.getLogger(Deserializer.class);
+
+  private static final byte[] beginCalendarLine = "BEGIN:VCALENDAR".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] beginEventLine = "BEGIN:VEVENT".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] endEventLine = "END:VEVENT".getBytes(StandardCharsets.US_ASCII);
+
   private final Executor executor;
 
-  private final Pattern hiddenPattern;
+  private volatile Pattern hiddenPattern;
+  private volatile int chunkEvents;
+
+  private final RecurrenceExpander recurrenceExpander;
 
   /**
    * Create a new Deserializer instance.
    * @param executor Executor to execute the long-running blocking deserialization operation with.
    * @param hiddenRegex Optional (can be "null") regular expression that is used to set {@link Event#hidden} if said regular expression matches the event summary.
+   * @param recurrenceLimit Maximum number of occurrences of a single recurring event within one month.
+   * @param chunkEvents Number of VEVENTs per chunk when parsing large feeds in parallel, see {@link Deserializer#setChunkEvents}.
    */
-  public Deserializer(Executor executor, String hiddenRegex) {
+  public Deserializer(Executor executor, String hiddenRegex, int recurrenceLimit, int chunkEvents) {
     this.executor = executor;
 
+    recurrenceExpander = new RecurrenceExpander(recurrenceLimit);
+
+    setHiddenRegex(hiddenRegex);
+    setChunkEvents(chunkEvents);
+  }
+
+  /**
+   * Replace the regular expression that is used to set {@link Event#hidden}, affecting every deserialization that starts afterwards.
+   * @param hiddenRegex Optional (can be "null") regular expression that is used to set {@link Event#hidden} if said regular expression matches the event summary.
+   */
+  public void setHiddenRegex(String hiddenRegex) {
     hiddenPattern =
       hiddenRegex != null && !hiddenRegex.isEmpty()
         ? Pattern.compile(hiddenRegex)
         : null;
   }
 
+  /**
+   * Set how feeds are split up to be parsed in parallel, affecting every deserialization that starts afterwards.
+   * Feeds with more than "chunkEvents" VEVENTs are split into chunks of "chunkEvents" VEVENTs, which are parsed on separate tasks.
+   * @param chunkEvents Number of VEVENTs per chunk, "0" parses every feed as a whole on a single task.
+   */
+  public void setChunkEvents(int chunkEvents) {
+    this.chunkEvents = Math.max(chunkEvents, 0);
+  }
+
+  /**
+   * Check if an event with a given summary should be hidden.
+   * @param summary Event summary, can be "null".
+   * @return Boolean indicating if the summary matches the hidden regular expression.
+   */
+  public boolean isHidden(String summary) {
+    var hiddenPattern = this.hiddenPattern;
+    return hiddenPattern != null && summary != null && hiddenPattern.matcher(summary).matches();
+  }
+
   /**
    * Deserialize iCalendar data from an {@link InputStream}.
-   * @param input Stream with iCalendar data.
+   * @param input Stream with iCalendar data, closed once it has been read.
+   * @param month Month that the data was requested for, recurring events are expanded within this month.
    * @return Array of events present in the first VCALENDAR object.
    */
-  public CompletableFuture<Event[]> deserialize(InputStream input) {
-    return CompletableFuture.supplyAsync(() -> {
-      try {
-        return interpret(parse(input));
-      } catch (IOException error) {
-        throw new CompletionException(error);
-      }
-    }, executor);
+  public CompletableFuture<Event[]> deserialize(InputStream input, Month month) {
+    return deserialize(input, month, executor);
+  }
+
+  /**
+   * Deserialize iCalendar data from an {@link InputStream} on a specific executor.
+   * @param input Stream with iCalendar data, closed once it has been read.
+   * @param month Month that the data was requested for, recurring events are expanded within this month.
+   * @param executor Executor to execute the deserialization operation with (instead of this Deserializer's executor).
+   * @return Array of events present in the first VCALENDAR object.
+   */
+  public CompletableFuture<Event[]> deserialize(InputStream input, Month month, Executor executor) {
+    return deserialize(input, month, executor, Trace.create(month.expression, false));
+  }
+
+  /**
+   * Deserialize iCalendar data from an {@link InputStream} on a specific executor, adding the time spent matching "hiddenRegex" to the "hide" stage of a trace.
+   * If the data is split into chunks that are interpreted in parallel, the matching time of every chunk is summed up in the "hideParallel" stage instead,
+   * as it overlaps with the other chunks and can't be subtracted from the enclosing stage.
+   * @param input Stream with iCalendar data, closed once it has been read.
+   * @param month Month that the data was requested for, recurring events are expanded within this month.
+   * @param executor Executor to execute the deserialization operation with (instead of this Deserializer's executor).
+   * @param trace Trace to record the time spent matching "hiddenRegex" in.
+   * @return Array of events present in the first VCALENDAR object.
+   */
+  public CompletableFuture<Event[]> deserialize(InputStream input, Month month, Executor executor, Trace trace) {
+    var chunkEvents = this.chunkEvents;
+    if (chunkEvents == 0) {
+      return CompletableFuture.supplyAsync(() -> {
+        // Closing the stream ends its inflater (if it is compressed) and the HTTP response it was read from
+        try (input) {
+          var calendar = parse(input);
+          return interpret(List.of(calendar), month, getOverrides(List.of(calendar)), trace, "hide");
+        } catch (IOException error) {
+          throw new CompletionException(error);
+        }
+      }, executor);
+    }
+
+    return CompletableFuture
+      // Read the whole feed and split it into chunks
+      .supplyAsync(() -> {
+        try (input) {
+          return split(input.readAllBytes(), chunkEvents);
+        } catch (IOException error) {
+          throw new CompletionException(error);
+        }
+      }, executor)
+      // Parse every chunk in parallel
+      .thenComposeAsync(chunks -> {
+        var parses = new ArrayList<CompletableFuture<ICalendar>>(chunks.size());
+        for (var chunk : chunks) {
+          parses.add(CompletableFuture.supplyAsync(() -> {
+            try {
+              return parse(new ByteArrayInputStream(chunk));
+            } catch (IOException error) {
+              throw new CompletionException(error);
+            }
+          }, executor));
+        }
+        return CompletableFuture
+          .allOf(parses.toArray(new CompletableFuture<?>[0]))
+          .thenApply(v -> parses.stream().map(CompletableFuture::join).toArray(ICalendar[]::new));
+      }, executor)
+      // Interpret every chunk in parallel, merging the events in source order
+      .thenComposeAsync(calendars -> {
+        var overrides = getOverrides(List.of(calendars));
+        var hideStage = calendars.length > 1 ? "hideParallel" : "hide";
+        var interpretations = new ArrayList<CompletableFuture<Event[]>>(calendars.length);
+        for (var calendar : calendars) {
+          interpretations.add(CompletableFuture.supplyAsync(() -> interpret(List.of(calendar), month, overrides, trace, hideStage), executor));
+        }
+        return CompletableFuture
+          .allOf(interpretations.toArray(new CompletableFuture<?>[0]))
+          .thenApply(v -> {
+            var events = new ArrayList<Event>();
+            for (var interpretation : interpretations) events.addAll(List.of(interpretation.join()));
+            return events.toArray(new Event[events.size()]);
+          });
+      }, executor);
   }
 
   /**
@@ -81,15 +207,140 @@ public final class Deserializer {
     return Biweekly.parse(input).first();
   }
 
-  private Event[] interpret(ICalendar calendar) {
+  /**
+   * Split iCalendar data into smaller documents of at most "chunkEvents" VEVENTs each, that can be parsed independently.
+   * Every document keeps everything outside of the VEVENTs (VCALENDAR properties, VTIMEZONEs, ...), so that it parses to the same VEVENTs.
+   * Lines are only matched at their start, so folded continuation lines (which start with whitespace) are never mistaken for a boundary.
+   * @param data iCalendar data.
+   * @param chunkEvents Maximum number of VEVENTs per document.
+   * @return List of documents in source order, just "data" if it is too small or can't be split safely.
+   */
+  private static List<byte[]> split(byte[] data, int chunkEvents) {
+    var eventStarts = new ArrayList<Integer>();
+    var eventEnds = new ArrayList<Integer>();
+    var calendars = 0;
+    var inEvent = false;
+
+    for (int lineStart = 0, lineEnd; lineStart < data.length; lineStart = lineEnd) {
+      lineEnd = lineStart;
+      while (lineEnd < data.length && data[lineEnd++] != '\n');
+
+      if (isLine(data, lineStart, lineEnd, beginCalendarLine)) {
+        calendars++;
+      } else if (isLine(data, lineStart, lineEnd, beginEventLine)) {
+        if (inEvent) return List.of(data);
+        inEvent = true;
+        eventStarts.add(lineStart);
+      } else if (isLine(data, lineStart, lineEnd, endEventLine)) {
+        if (!inEvent) return List.of(data);
+        inEvent = false;
+        eventEnds.add(lineEnd);
+      }
+    }
+
+    // Only a single, well-formed VCALENDAR is split up
+    var count = eventStarts.size();
+    if (inEvent || calendars != 1 || count <= chunkEvents) return List.of(data);
+
+    var head = new ByteArrayOutputStream(eventStarts.get(0));
+    head.write(data, 0, eventStarts.get(0));
+    var tail = new ByteArrayOutputStream();
+    for (int i = 0; i < count; i++) {
+      var end = i + 1 < count ? eventStarts.get(i + 1) : data.length;
+      tail.write(data, eventEnds.get(i), end - eventEnds.get(i));
+    }
+
+    var chunks = new ArrayList<byte[]>((count + chunkEvents - 1) / chunkEvents);
+    for (int first = 0; first < count; first += chunkEvents) {
+      var last = Math.min(first + chunkEvents, count);
+      var chunk = new ByteArrayOutputStream();
+      chunk.writeBytes(head.toByteArray());
+      for (int i = first; i < last; i++)
+        chunk.write(data, eventStarts.get(i), eventEnds.get(i) - eventStarts.get(i));
+      chunk.writeBytes(tail.toByteArray());
+      chunks.add(chunk.toByteArray());
+    }
+    return chunks;
+  }
+
+  // Is the line from "start" to "end" exactly "content" (ignoring case and the line terminator)?
+  private static boolean isLine(byte[] data, int start, int end, byte[] content) {
+    while (end > start && (data[end - 1] == '\n' || data[end - 1] == '\r')) end--;
+    if (end - start != content.length) return false;
+    for (int i = 0; i < content.length; i++) {
+      var b = data[start + i];
+      if (b >= 'a' && b <= 'z') b -= 'a' - 'A';
+      if (b != content[i]) return false;
+    }
+    return true;
+  }
+
+  // Occurrences replaced by a VEVENT with a RECURRENCE-ID, these must not be generated again
+  private Map<String, Set<Long>> getOverrides(List<ICalendar> calendars) {
+    var overrides = new HashMap<String, Set<Long>>();
+    for (var calendar : calendars) {
+      for (var vevent : calendar.getEvents()) {
+        var uid = getValue(vevent.getUid());
+        var recurrenceId = getValueTimestamp(vevent.getRecurrenceId());
+        if (uid != null && recurrenceId != null)
+          overrides.computeIfAbsent(uid, key -> new HashSet<>()).add(recurrenceId);
+      }
+    }
+    return overrides;
+  }
+
+  private Event[] interpret(List<ICalendar> calendars, Month month, Map<String, Set<Long>> overrides, Trace trace, String hideStage) {
+    var events = new ArrayList<Event>();
+    var hideTime = new long[1];
+    for (var calendar : calendars) interpret(calendar, month, overrides, events, hideTime);
+    trace.add(hideStage, hideTime[0]);
+    return events.toArray(new Event[events.size()]);
+  }
+
+  private void interpret(ICalendar calendar, Month month, Map<String, Set<Long>> overrides, List<Event> events, long[] hideTime) {
     var vevents = calendar.getEvents();
-    var events = new Event[vevents.size()];
+    for (var vevent : vevents) {
+      var event = interpretEvent(vevent, hideTime);
+      if (!RecurrenceExpander.isRecurring(vevent)) {
+        events.add(event);
+        continue;
+      }
 
-    for (int i = 0; i < events.length; i++) {
-      events[i] = interpretEvent(vevents.get(i));
+      var duration = event.duration != null ? event.duration : 0;
+      long[] occurrences;
+      try {
+        occurrences = recurrenceExpander.expand(
+          calendar, vevent, month, duration, overrides.getOrDefault(event.uid, Set.of())
+        );
+      } catch (RuntimeException error) {
+        // Keep the series as-is if its recurrence can't be expanded, rather than losing it
+        log.warn("Failed to expand the recurrence of {} in {}", event.uid, month, error);
+        events.add(event);
+        continue;
+      }
+
+      // A series without occurrences in the month (all excluded or overridden) contributes nothing
+      for (var start : occurrences) {
+        events.add(interpretOccurrence(event, start));
+      }
     }
+  }
 
-    return events;
+  private Event interpretOccurrence(Event event, long start) {
+    return new Event(
+      event.hidden,
+      event.uid,
+      event.url,
+      event.created,
+      event.modified,
+      start,
+      event.end != null ? start + event.duration : null,
+      event.duration,
+      event.summary,
+      event.description,
+      event.categories,
+      event.location
+    );
   }
 
   private <T> T getValue(ValuedProperty<T> property) {
@@ -106,7 +357,7 @@ public final class Deserializer {
         : null;
   }
 
-  private Event interpretEvent(VEvent vevent) {
+  private Event interpretEvent(VEvent vevent, long[] hideTime) {
     var uid = getValue(vevent.getUid());
     var url = getValue(vevent.getUrl());
 
@@ -122,11 +373,9 @@ public final class Deserializer {
 
     var location = getValue(vevent.getLocation());
 
-    boolean hidden;
-    if (hiddenPattern != null && summary != null)
-      hidden = hiddenPattern.matcher(summary).matches();
-    else
-      hidden = false;
+    var hideStart = System.nanoTime();
+    var hidden = isHidden(summary);
+    hideTime[0] += System.nanoTime() - hideStart;
 
     var veventCategoriesList = vevent.getCategories();
     var categoryList = new ArrayList<String>();
@@ -1,16 +1,24 @@
 package wtf.lua.rockblock.calendarserver;
 
+import java.io.BufferedInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpClient.Redirect;
 import java.net.http.HttpClient.Version;
 import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.BodyHandlers;
 import java.time.Duration;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.Executor;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,6 +26,7 @@ import org.slf4j.LoggerFactory;
 /**
  * Downloader is used to download files/resources from the internet over HTTP or HTTPS.
  * CalendarServer uses it to download the iCalendar .ICS files from whatever server the user specifies.
+ * It can be subclassed to stand in for the calendar source, see {@link Simulator}.
  *
  * <p>
  * Copyright (C) 2020 Lua MacDougall
@@ -38,7 +47,7 @@ import org.slf4j.LoggerFactory;
  *
  * @author Lua MacDougall &lt;luawhat@gmail.com&gt;
  */
-public final class Downloader {
+public class Downloader {
   private static final Logger log = LoggerFactory.getLogger(Downloader.class);
 
   /** HTTP User-Agent header sent with every request. */
@@ -48,23 +57,25 @@ public final class Downloader {
   );
 
   private final Executor executor;
+  private final long connectTimeout;
+  private final boolean http2;
+  private final boolean compression;
 
-  private final HttpClient httpClient;
+  // Created on the first download, a server that only serves pre-rendered or peer data may never need it
+  private volatile HttpClient httpClient;
 
   /**
    * Create a new Downloader instance.
    * @param executor Executor instance to use for executing request tasks.
    * @param connectTimeout How long (in milliseconds) to wait before timing out when connecting to a server.
+   * @param http2 Use HTTP/2 where the server supports it (instead of always using HTTP/1.1)?
+   * @param compression Ask servers for gzip/deflate compressed responses?
    */
-  public Downloader(Executor executor, long connectTimeout) {
+  public Downloader(Executor executor, long connectTimeout, boolean http2, boolean compression) {
     this.executor = executor;
-    httpClient = HttpClient
-      .newBuilder()
-      .version(Version.HTTP_1_1)
-      .followRedirects(Redirect.NORMAL)
-      .executor(executor)
-      .connectTimeout(Duration.ofMillis(connectTimeout))
-      .build();
+    this.connectTimeout = connectTimeout;
+    this.http2 = http2;
+    this.compression = compression;
   }
 
   /**
@@ -74,29 +85,132 @@ public final class Downloader {
    * @return CompletableFuture that completes with an InputStream containing the requested resource.
    */
   public CompletableFuture<InputStream> download(URI uri, long retrieveTimeout) {
-    var httpRequest = HttpRequest
+    return download(uri, retrieveTimeout, new String[0]);
+  }
+
+  /**
+   * Download a resource from the internet over HTTP (or HTTPS) with the GET method, sending additional request headers.
+   * @param uri URI/URL pointing to the resource to download.
+   * @param retrieveTimeout How long (in milliseconds) to wait before timing out while downloading the resource.
+   * @param headers List of name value pairs, see {@link HttpRequest.Builder#headers}.
+   * @return CompletableFuture that completes with an InputStream containing the requested resource, cancel it to abort the download
+   *         (on a best-effort basis, the response is closed as soon as its headers arrive at the latest).
+   */
+  public CompletableFuture<InputStream> download(URI uri, long retrieveTimeout, String... headers) {
+    return download(uri, retrieveTimeout, Trace.create(uri.toString(), false), headers);
+  }
+
+  /**
+   * Download a resource from the internet over HTTP (or HTTPS) with the GET method, sending additional request headers and tracing the download.
+   * The time until the response headers arrive is recorded as the "connect" stage, and the time spent reading the returned InputStream is added to the "body" stage.
+   * @param uri URI/URL pointing to the resource to download.
+   * @param retrieveTimeout How long (in milliseconds) to wait before timing out while downloading the resource.
+   * @param trace Trace to record the download's stages in.
+   * @param headers List of name value pairs, see {@link HttpRequest.Builder#headers}.
+   * @return CompletableFuture that completes with an InputStream containing the requested resource, cancel it to abort the download
+   *         (on a best-effort basis, the response is closed as soon as its headers arrive at the latest).
+   */
+  public CompletableFuture<InputStream> download(URI uri, long retrieveTimeout, Trace trace, String... headers) {
+    var httpRequestBuilder = HttpRequest
       .newBuilder()
       .GET()
       .uri(uri)
       .header("User-Agent", userAgent)
-      .timeout(Duration.ofMillis(retrieveTimeout))
-      .build();
+      .timeout(Duration.ofMillis(retrieveTimeout));
+    if (compression)
+      httpRequestBuilder.header("Accept-Encoding", "gzip, deflate");
+    if (headers.length > 0)
+      httpRequestBuilder.headers(headers);
+    var httpRequest = httpRequestBuilder.build();
 
-    log.info("Download started for {}", uri);
+    EventLog.info(log, "Download started for {}", uri);
 
-    return httpClient
-      .sendAsync(httpRequest, BodyHandlers.ofInputStream())
-      .thenApplyAsync(response -> {
-        var status = response.statusCode();
-        if (status / 100 != 2) {
-          log.error("Download failed (non-2XX status code) for {}", uri);
-          throw new CompletionException(new BadStatusException(String.format(
-            "Recieved error status code %d", status
-          )));
-        } else {
-          log.info("Download completed for {}", uri);
-          return response.body();
+    var connect = trace.begin("connect");
+    var exchange = getHttpClient().sendAsync(httpRequest, BodyHandlers.ofInputStream());
+    var promise = exchange.thenApplyAsync(response -> {
+      connect.end();
+      var status = response.statusCode();
+      if (status / 100 != 2) {
+        log.error("Download failed (non-2XX status code) for {}", uri);
+        throw new CompletionException(new BadStatusException(String.format(
+          "Recieved error status code %d", status
+        )));
+      } else {
+        EventLog.info(log, "Download completed for {}", uri);
+        try {
+          return trace.time(decode(response), "body");
+        } catch (IOException error) {
+          try { response.body().close(); }
+          catch (IOException closeError) { error.addSuppressed(closeError); }
+          throw new UncheckedIOException(error);
         }
-      }, executor);
+      }
+    }, executor);
+
+    // Cancelling the returned CompletableFuture aborts the HTTP exchange
+    promise.whenComplete((input, error) -> {
+      if (error == null) return;
+      var cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+      if (cause instanceof CancellationException) {
+        EventLog.info(log, "Download cancelled for {}", uri);
+        exchange.cancel(true);
+        // Before JDK 16 cancelling the exchange doesn't abort it, so its response (if it gets one) is closed instead
+        exchange.thenAccept(response -> {
+          try { response.body().close(); }
+          catch (IOException closeError) { }
+        });
+      }
+    });
+    return promise;
+  }
+
+  private HttpClient getHttpClient() {
+    var httpClient = this.httpClient;
+    if (httpClient == null) {
+      synchronized (this) {
+        httpClient = this.httpClient;
+        if (httpClient == null) {
+          this.httpClient = httpClient = HttpClient
+            .newBuilder()
+            .version(http2 ? Version.HTTP_2 : Version.HTTP_1_1)
+            .followRedirects(Redirect.NORMAL)
+            .executor(executor)
+            .connectTimeout(Duration.ofMillis(connectTimeout))
+            .build();
+        }
+      }
+    }
+    return httpClient;
+  }
+
+  // Wrap the response body in a decompressing stream matching its Content-Encoding, it is decompressed as it is read
+  private static InputStream decode(HttpResponse<InputStream> response) throws IOException {
+    var body = response.body();
+    var encoding = response.headers().firstValue("Content-Encoding").orElse("identity").trim().toLowerCase();
+    switch (encoding) {
+      case "identity":
+        return body;
+      case "gzip":
+      case "x-gzip":
+        return new GZIPInputStream(body, 8192);
+      case "deflate":
+        // "deflate" should be zlib-wrapped, but some servers send raw deflate data instead
+        var buffered = new BufferedInputStream(body, 8192);
+        buffered.mark(2);
+        var header = (buffered.read() << 8) | buffered.read();
+        buffered.reset();
+        var zlib = header >= 0 && (header & 0x0F00) == 0x0800 && header % 31 == 0;
+        var inflater = new Inflater(!zlib);
+        // InflaterInputStream only ends inflaters it created itself, this one's native memory is freed on close
+        return new InflaterInputStream(buffered, inflater, 8192) {
+          @Override
+          public void close() throws IOException {
+            try { super.close(); }
+            finally { inflater.end(); }
+          }
+        };
+      default:
+        throw new IOException(String.format("Unsupported Content-Encoding \"%s\"", encoding));
+    }
   }
 }
@@ -1,5 +1,8 @@
 package wtf.lua.rockblock.calendarserver;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
 /**
  * Event represents an immutable calendar event generated from input iCalendar data.
  * Note that any of Event's fields could possibly be "null" (except {@link Event#hidden} and {@link Event#categories}).
@@ -73,19 +76,20 @@ public final class Event {
    * @param categories  {@link Event#categories}
    * @param location    {@link Event#location}
    */
+  @JsonCreator
   public Event(
-    boolean hidden,
-    String uid,
-    String url,
-    Long created,
-    Long modified,
-    Long start,
-    Long end,
-    Long duration,
-    String summary,
-    String description,
-    String[] categories,
-    String location
+    @JsonProperty("hidden")      boolean hidden,
+    @JsonProperty("uid")         String uid,
+    @JsonProperty("url")         String url,
+    @JsonProperty("created")     Long created,
+    @JsonProperty("modified")    Long modified,
+    @JsonProperty("start")       Long start,
+    @JsonProperty("end")         Long end,
+    @JsonProperty("duration")    Long duration,
+    @JsonProperty("summary")     String summary,
+    @JsonProperty("description") String description,
+    @JsonProperty("categories")  String[] categories,
+    @JsonProperty("location")    String location
   ) {
     this.hidden = hidden;
     this.uid = uid;
@@ -0,0 +1,106 @@
+package wtf.lua.rockblock.calendarserver;
+
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * EventLog writes the informational messages logged on hot paths (cache misses, updates, downloads) on a background thread,
+ * so that threads answering requests never wait for the log output. Messages are passed through a {@link LogRing} and dropped
+ * while it is full. Until {@link EventLog#start} is called (and after {@link EventLog#stop}), messages are logged straight away.
+ * Warnings and errors are rare and shouldn't be lost, so they are logged through the Logger directly.
+ *
+ * <p>
+ * Copyright (C) 2020 Lua MacDougall
+ * <br/><br/>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <br/><br/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * <br/><br/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see &lt;https://www.gnu.org/licenses/&gt;.
+ * </p>
+ *
+ * @author Lua MacDougall &lt;luawhat@gmail.com&gt;
+ */
+public final class EventLog {
+  private static final Logger log = LoggerFactory.getLogger(EventLog.class);
+
+  // Number of messages passed to the Logger at once
+  private static final int batchSize = 256;
+
+  /**
+   * Message is a log message waiting to be formatted and written.
+   */
+  private static final class Message {
+    private final Logger logger;
+    private final String format;
+    private final Object[] arguments;
+
+    public Message(Logger logger, String format, Object[] arguments) {
+      this.logger = logger;
+      this.format = format;
+      this.arguments = arguments;
+    }
+  }
+
+  private static volatile LogRing<Message> ring;
+  // Dropped message count that has already been reported
+  private static long reportedDropped;
+
+  private EventLog() {}
+
+  /**
+   * Start writing messages on a background thread.
+   * @param capacity Number of messages that may wait to be written at once.
+   */
+  public static synchronized void start(int capacity) {
+    if (ring != null) return;
+    reportedDropped = 0;
+    ring = new LogRing<>("event-log", capacity, batchSize, EventLog::write);
+  }
+
+  /**
+   * Write the messages that are still waiting and go back to logging straight away.
+   */
+  public static synchronized void stop() {
+    var ring = EventLog.ring;
+    if (ring == null) return;
+    EventLog.ring = null;
+    ring.close();
+  }
+
+  /**
+   * Log an informational message, see {@link Logger#info(String, Object...)}.
+   * The arguments are only formatted later on, so they must not be modified afterwards.
+   * @param logger Logger to log the message with.
+   * @param format Message format string.
+   * @param arguments Message arguments.
+   */
+  public static void info(Logger logger, String format, Object... arguments) {
+    if (!logger.isInfoEnabled()) return;
+
+    var ring = EventLog.ring;
+    if (ring != null) ring.offer(new Message(logger, format, arguments));
+    else logger.info(format, arguments);
+  }
+
+  private static void write(List<Message> messages) {
+    for (var message : messages) message.logger.info(message.format, message.arguments);
+
+    // Only the background thread reports drops
+    var ring = EventLog.ring;
+    var dropped = ring != null ? ring.getDropped() : reportedDropped;
+    if (dropped > reportedDropped) {
+      log.warn("Dropped {} log messages, the log output can't keep up", dropped - reportedDropped);
+      reportedDropped = dropped;
+    }
+  }
+}
@@ -0,0 +1,159 @@
+package wtf.lua.rockblock.calendarserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * EventProjection is a precompiled serializer that writes a subset of the fields of each {@link Event} in an {@link EventTable}.
+ * Projections are created with {@link EventProjection#parse} and shared, so every distinct set of fields is only compiled once.
+ *
+ * <p>
+ * Copyright (C) 2020 Lua MacDougall
+ * <br/><br/>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <br/><br/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * <br/><br/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see &lt;https://www.gnu.org/licenses/&gt;.
+ * </p>
+ *
+ * @author Lua MacDougall &lt;luawhat@gmail.com&gt;
+ */
+public final class EventProjection {
+  /**
+   * FieldWriter writes a single field of an event in an {@link EventTable}.
+   */
+  private static interface FieldWriter {
+    public void write(JsonGenerator generator, EventTable table, int index) throws IOException;
+  }
+
+  // Every field of Event in declaration order (which is also the order used by Jackson)
+  private static final Map<String, FieldWriter> fieldWriters = new LinkedHashMap<>();
+  static {
+    fieldWriters.put("hidden",      (generator, table, index) -> generator.writeBooleanField("hidden", table.getRecord(index).hidden));
+    fieldWriters.put("uid",         (generator, table, index) -> writeString(generator, "uid", table.getRecord(index).uid));
+    fieldWriters.put("url",         (generator, table, index) -> writeString(generator, "url", table.getRecord(index).url));
+    fieldWriters.put("created",     (generator, table, index) -> writeTimestamp(generator, "created", table.getRecord(index).created));
+    fieldWriters.put("modified",    (generator, table, index) -> writeTimestamp(generator, "modified", table.getRecord(index).modified));
+    fieldWriters.put("start",       (generator, table, index) -> writeTimestamp(generator, "start", table.getStart(index)));
+    fieldWriters.put("end",         (generator, table, index) -> writeTimestamp(generator, "end", table.getEnd(index)));
+    fieldWriters.put("duration",    (generator, table, index) -> writeTimestamp(generator, "duration", table.getDuration(index)));
+    fieldWriters.put("summary",     (generator, table, index) -> writeString(generator, "summary", table.getRecord(index).summary));
+    fieldWriters.put("description", (generator, table, index) -> writeString(generator, "description", table.getRecord(index).description));
+    fieldWriters.put("categories",  (generator, table, index) -> {
+      generator.writeArrayFieldStart("categories");
+      for (var category : table.getRecord(index).categories) generator.writeString(category);
+      generator.writeEndArray();
+    });
+    fieldWriters.put("location",    (generator, table, index) -> writeString(generator, "location", table.getRecord(index).location));
+  }
+
+  private static void writeString(JsonGenerator generator, String name, String value) throws IOException {
+    if (value != null) generator.writeStringField(name, value);
+    else generator.writeNullField(name);
+  }
+  private static void writeTimestamp(JsonGenerator generator, String name, long value) throws IOException {
+    if (value != EventTable.none) generator.writeNumberField(name, value);
+    else generator.writeNullField(name);
+  }
+
+  private static final Pattern fieldSplitPattern = Pattern.compile(",");
+
+  // Compiled projections, keyed by their canonical field list
+  private static final Map<String, EventProjection> projections = new ConcurrentHashMap<>();
+
+  /** Projection that writes every field. */
+  public static final EventProjection all = compile(String.join(",", fieldWriters.keySet()));
+
+  /** Canonical comma-separated field list of this projection (fields are in declaration order). */
+  public final String key;
+
+  private final FieldWriter[] writers;
+
+  private EventProjection(String key, FieldWriter[] writers) {
+    this.key = key;
+    this.writers = writers;
+  }
+
+  /**
+   * Is this the projection that writes every field?
+   * @return Boolean indicating if this projection is {@link EventProjection#all}.
+   */
+  public boolean isAll() {
+    return this == all;
+  }
+
+  /**
+   * Write the events of a table using this projection.
+   * @param factory JsonFactory for the output format.
+   * @param table Events to write.
+   * @return Encoded array of projected events (as a byte array).
+   * @throws IOException If the generator fails.
+   */
+  public byte[] write(JsonFactory factory, EventTable table) throws IOException {
+    var output = new ByteArrayOutputStream();
+    try (var generator = factory.createGenerator(output)) {
+      generator.writeStartArray();
+      for (int i = 0, size = table.size(); i < size; i++) {
+        generator.writeStartObject();
+        for (var writer : writers) writer.write(generator, table, i);
+        generator.writeEndObject();
+      }
+      generator.writeEndArray();
+    }
+    return output.toByteArray();
+  }
+
+  /**
+   * Get the projection for a comma-separated list of field names, compiling it if it is the first time it was requested.
+   * Field order and duplicates in "fields" do not matter.
+   * @param fields Comma-separated list of field names, EX: "uid,start,summary".
+   * @return EventProjection instance.
+   * @throws InvalidProjectionException If "fields" is null/empty or contains an unknown field.
+   */
+  public static EventProjection parse(String fields) throws InvalidProjectionException {
+    if (fields == null)
+      throw new InvalidProjectionException("Fields are null");
+
+    var requested = new ArrayList<String>();
+    for (var field : fieldSplitPattern.split(fields)) {
+      field = field.trim();
+      if (field.isEmpty()) continue;
+      if (!fieldWriters.containsKey(field))
+        throw new InvalidProjectionException(String.format("Unknown field \"%s\"", field));
+      requested.add(field);
+    }
+    if (requested.isEmpty())
+      throw new InvalidProjectionException("No fields specified");
+
+    var canonical = new ArrayList<String>();
+    for (var field : fieldWriters.keySet()) {
+      if (requested.contains(field)) canonical.add(field);
+    }
+    return compile(String.join(",", canonical));
+  }
+
+  private static EventProjection compile(String key) {
+    return projections.computeIfAbsent(key, k -> {
+      var names = fieldSplitPattern.split(k);
+      var writers = new FieldWriter[names.length];
+      for (int i = 0; i < names.length; i++) writers[i] = fieldWriters.get(names[i]);
+      return new EventProjection(k, writers);
+    });
+  }
+}
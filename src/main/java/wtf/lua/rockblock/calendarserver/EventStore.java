@@ -0,0 +1,184 @@
+package wtf.lua.rockblock.calendarserver;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * EventStore converts arrays of {@link Event}s into compact {@link EventTable}s, sharing storage between all of the tables it creates.
+ * Records are keyed by UID so that an event appearing in several months is stored once, and category + location strings are
+ * deduplicated through a string pool. Records are only weakly held by the store and disappear once no table uses them anymore.
+ *
+ * <p>
+ * Copyright (C) 2020 Lua MacDougall
+ * <br/><br/>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <br/><br/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * <br/><br/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see &lt;https://www.gnu.org/licenses/&gt;.
+ * </p>
+ *
+ * @author Lua MacDougall &lt;luawhat@gmail.com&gt;
+ */
+public final class EventStore {
+  // Maximum number of distinct strings in the string pool, past this point strings are no longer deduplicated
+  private static final int poolCapacity = 65536;
+
+  /**
+   * RecordReference is a weak reference to a record that remembers its key so it can be removed from "records" once cleared.
+   */
+  private static final class RecordReference extends WeakReference<EventTable.Record> {
+    private final String key;
+
+    public RecordReference(String key, EventTable.Record record, ReferenceQueue<EventTable.Record> queue) {
+      super(record, queue);
+      this.key = key;
+    }
+  }
+
+  // UID -> latest record with that UID
+  private final Map<String, RecordReference> records;
+  private final ReferenceQueue<EventTable.Record> recordQueue;
+
+  // Deduplicated category + location strings
+  private final Map<String, String> pool;
+
+  /**
+   * Create a new EventStore instance.
+   */
+  public EventStore() {
+    records = new ConcurrentHashMap<>();
+    recordQueue = new ReferenceQueue<>();
+    pool = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Convert an array of events into an EventTable, reusing records from previously stored events where possible.
+   * @param events Events to store.
+   * @return EventTable containing "events" (in the same order).
+   */
+  public EventTable store(Event[] events) {
+    expunge();
+
+    var tableRecords = new EventTable.Record[events.length];
+    var starts = new long[events.length];
+    var ends = new long[events.length];
+
+    for (int i = 0; i < events.length; i++) {
+      var event = events[i];
+      tableRecords[i] = intern(toRecord(event));
+      starts[i] = event.start != null ? event.start : EventTable.none;
+      ends[i] = event.end != null ? event.end : EventTable.none;
+    }
+
+    return new EventTable(tableRecords, starts, ends);
+  }
+
+  /**
+   * Create a copy of an EventTable with the {@link EventTable.Record#hidden} flag of every event re-derived from its summary.
+   * @param table Table to copy.
+   * @param isHidden Function that decides if an event with a given summary is hidden.
+   * @return EventTable with updated records, or "table" itself if no event's hidden flag changed.
+   */
+  public EventTable rehide(EventTable table, Predicate<String> isHidden) {
+    expunge();
+
+    var size = table.size();
+    EventTable.Record[] tableRecords = null;
+    var starts = new long[size];
+    var ends = new long[size];
+
+    for (int i = 0; i < size; i++) {
+      var record = table.getRecord(i);
+      var hidden = isHidden.test(record.summary);
+      if (hidden != record.hidden) {
+        if (tableRecords == null) {
+          tableRecords = new EventTable.Record[size];
+          for (int j = 0; j < i; j++) tableRecords[j] = table.getRecord(j);
+        }
+        record = intern(new EventTable.Record(
+          hidden,
+          record.uid,
+          record.url,
+          record.created,
+          record.modified,
+          record.summary,
+          record.description,
+          record.categories,
+          record.location
+        ));
+      }
+      if (tableRecords != null) tableRecords[i] = record;
+      starts[i] = table.getStart(i);
+      ends[i] = table.getEnd(i);
+    }
+
+    return tableRecords != null ? new EventTable(tableRecords, starts, ends) : table;
+  }
+
+  /**
+   * Get the number of records currently held by this store.
+   * @return Record count (including records that are about to be cleared).
+   */
+  public int getRecordCount() {
+    return records.size();
+  }
+
+  private EventTable.Record toRecord(Event event) {
+    var categories = new String[event.categories.length];
+    for (int i = 0; i < categories.length; i++) categories[i] = pool(event.categories[i]);
+
+    return new EventTable.Record(
+      event.hidden,
+      event.uid,
+      event.url,
+      event.created != null ? event.created : EventTable.none,
+      event.modified != null ? event.modified : EventTable.none,
+      event.summary,
+      event.description,
+      categories,
+      pool(event.location)
+    );
+  }
+
+  private EventTable.Record intern(EventTable.Record record) {
+    if (record.uid == null) return record;
+
+    var existing = records.get(record.uid);
+    if (existing != null) {
+      var existingRecord = existing.get();
+      if (record.equals(existingRecord)) return existingRecord;
+    }
+
+    records.put(record.uid, new RecordReference(record.uid, record, recordQueue));
+    return record;
+  }
+
+  private String pool(String value) {
+    if (value == null) return null;
+
+    var pooled = pool.get(value);
+    if (pooled != null) return pooled;
+    if (pool.size() >= poolCapacity) return value;
+
+    pooled = pool.putIfAbsent(value, value);
+    return pooled != null ? pooled : value;
+  }
+
+  private void expunge() {
+    RecordReference reference;
+    while ((reference = (RecordReference)recordQueue.poll()) != null) {
+      records.remove(reference.key, reference);
+    }
+  }
+}
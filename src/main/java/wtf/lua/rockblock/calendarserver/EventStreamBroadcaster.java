@@ -0,0 +1,206 @@
+package wtf.lua.rockblock.calendarserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.util.AttributeKey;
+
+/**
+ * EventStreamBroadcaster pushes month updates from {@link CalendarJsonProvider} to Server-Sent Events subscribers.
+ * Each update is encoded into a single buffer which is then shared (not copied) between all subscribers of that month.
+ * Subscribers that are not writable are skipped and sent the latest body once they become writable again.
+ *
+ * <p>
+ * Copyright (C) 2020 Lua MacDougall
+ * <br/><br/>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <br/><br/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * <br/><br/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see &lt;https://www.gnu.org/licenses/&gt;.
+ * </p>
+ *
+ * @author Lua MacDougall &lt;luawhat@gmail.com&gt;
+ */
+public final class EventStreamBroadcaster implements CalendarJsonProvider.UpdateListener {
+  private static final Logger log = LoggerFactory.getLogger(EventStreamBroadcaster.class);
+
+  // Months that a subscriber missed while it was not writable
+  private static final AttributeKey<Set<Month>> missedKey = AttributeKey.valueOf("eventStreamMissed");
+
+  private static final byte[] framePrefix = "event: update\nid: ".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] frameData = "\ndata: ".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] frameSuffix = "\n\n".getBytes(StandardCharsets.UTF_8);
+
+  // Month -> subscribed channels
+  private final Map<Month, Set<Channel>> subscribers;
+
+  private final CalendarJsonProvider calendarJsonProvider;
+
+  // The periodic refresh is only scheduled once the first channel subscribes, every run schedules the next with the current cacheTTL
+  private final EventLoopGroup group;
+  private final AtomicBoolean refreshScheduled;
+
+  private volatile Config config;
+
+  /**
+   * Create a new EventStreamBroadcaster instance and register it as an update listener.
+   * Subscribed months are periodically requested (starting with the first subscription) so that they are refreshed once their cache entries expire.
+   * @param group Event loop group used to schedule the periodic refresh.
+   * @param config Application configuration.
+   * @param calendarJsonProvider CalendarJsonProvider to listen to.
+   */
+  public EventStreamBroadcaster(EventLoopGroup group, Config config, CalendarJsonProvider calendarJsonProvider) {
+    this.calendarJsonProvider = calendarJsonProvider;
+
+    subscribers = new ConcurrentHashMap<>();
+
+    calendarJsonProvider.addUpdateListener(this);
+
+    this.group = group;
+    this.config = config;
+    refreshScheduled = new AtomicBoolean();
+  }
+
+  /**
+   * Apply a reloaded configuration, the refresh period follows the new "cacheTTL" from the next refresh on.
+   * @param newConfig New application configuration.
+   */
+  public void reconfigure(Config newConfig) {
+    config = newConfig;
+  }
+
+  /**
+   * Subscribe a channel to updates for a set of months.
+   * The current body of each month is sent to the channel straight away (or once it has been generated).
+   * @param channel Channel to write update frames to, the HTTP response head must already have been written.
+   * @param months Months to subscribe to.
+   */
+  public void subscribe(Channel channel, Collection<Month> months) {
+    if (refreshScheduled.compareAndSet(false, true)) scheduleRefresh();
+
+    channel.attr(missedKey).set(ConcurrentHashMap.newKeySet());
+
+    for (var month : months) {
+      subscribers.computeIfAbsent(month, key -> ConcurrentHashMap.newKeySet()).add(channel);
+    }
+    channel.closeFuture().addListener(future -> {
+      for (var month : months) {
+        subscribers.computeIfPresent(month, (key, channels) -> {
+          channels.remove(channel);
+          return channels.isEmpty() ? null : channels;
+        });
+      }
+    });
+
+    EventLog.info(log, "Event stream subscriber {} added for {}", channel.remoteAddress(), months);
+
+    for (var month : months) {
+      sendCurrent(channel, month);
+    }
+  }
+
+  /**
+   * Resend the latest body of every month that a channel missed while it was not writable.
+   * Should be called when the channel's writability changes.
+   * @param channel Subscribed channel.
+   */
+  public void resume(Channel channel) {
+    var missed = channel.attr(missedKey).get();
+    if (missed == null || !channel.isWritable()) return;
+
+    for (var month : missed) {
+      if (missed.remove(month)) sendCurrent(channel, month);
+    }
+  }
+
+  @Override
+  public void onUpdate(Month month, MonthBody body) {
+    var channels = subscribers.get(month);
+    if (channels == null || channels.isEmpty()) return;
+
+    // Encode once, every subscriber gets a duplicate sharing the same memory
+    var frame = encodeFrame(channels.iterator().next().alloc(), month, body.getJson());
+    try {
+      for (var channel : channels) {
+        write(channel, month, frame);
+      }
+    } finally { frame.release(); }
+  }
+
+  private void sendCurrent(Channel channel, Month month) {
+    // Bodies that are still being generated will reach the channel through onUpdate instead, but must be released all the same
+    var promise = calendarJsonProvider.request(month);
+    var ready = promise.isDone();
+
+    promise.thenAccept(body -> {
+      try {
+        if (!ready || !channel.isActive()) return;
+        var frame = encodeFrame(channel.alloc(), month, body.getJson());
+        try {
+          write(channel, month, frame);
+        } finally { frame.release(); }
+      } finally { body.release(); }
+    });
+  }
+
+  private void write(Channel channel, Month month, ByteBuf frame) {
+    if (!channel.isActive()) return;
+
+    if (channel.isWritable()) {
+      channel.writeAndFlush(new DefaultHttpContent(frame.retainedDuplicate())).addListener(future -> {
+        if (!future.isSuccess())
+          log.error("Failed to send event stream update", future.cause());
+      });
+    } else {
+      var missed = channel.attr(missedKey).get();
+      if (missed != null) missed.add(month);
+    }
+  }
+
+  private void scheduleRefresh() {
+    if (group.isShuttingDown()) return;
+    group.schedule(this::refresh, Math.max(config.cacheTTL / 4, 1000), TimeUnit.MILLISECONDS);
+  }
+
+  private void refresh() {
+    try {
+      for (var month : subscribers.keySet()) {
+        calendarJsonProvider.request(month, false, PriorityExecutor.Priority.BACKGROUND).thenAccept(MonthBody::release);
+      }
+    } finally { scheduleRefresh(); }
+  }
+
+  private static ByteBuf encodeFrame(ByteBufAllocator alloc, Month month, ByteBuf body) {
+    var expression = month.expression.getBytes(StandardCharsets.UTF_8);
+    var size = framePrefix.length + expression.length + frameData.length + body.readableBytes() + frameSuffix.length;
+
+    var frame = alloc.directBuffer(size);
+    frame.writeBytes(framePrefix);
+    frame.writeBytes(expression);
+    frame.writeBytes(frameData);
+    frame.writeBytes(body, body.readerIndex(), body.readableBytes());
+    frame.writeBytes(frameSuffix);
+    return frame;
+  }
+}
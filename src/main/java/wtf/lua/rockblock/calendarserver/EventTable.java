@@ -0,0 +1,176 @@
+package wtf.lua.rockblock.calendarserver;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * EventTable is the compact, immutable in-memory representation of the events of a single month.
+ * Start/end timestamps are stored in primitive columns (with {@link EventTable#none} standing in for "null"), while everything else
+ * is stored in a shared {@link EventTable.Record} so that the same event appearing in many months (or many occurrences of a recurring
+ * event) is only stored once, see {@link EventStore}.
+ *
+ * <p>
+ * Copyright (C) 2020 Lua MacDougall
+ * <br/><br/>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <br/><br/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * <br/><br/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see &lt;https://www.gnu.org/licenses/&gt;.
+ * </p>
+ *
+ * @author Lua MacDougall &lt;luawhat@gmail.com&gt;
+ */
+public final class EventTable {
+  /** Timestamp value that represents a missing ("null") timestamp. */
+  public static final long none = Long.MIN_VALUE;
+
+  /**
+   * Record holds the fields of an {@link Event} that do not change between occurrences, shared between every month it appears in.
+   */
+  public static final class Record {
+    /** {@link Event#hidden} */
+    public final boolean hidden;
+    /** {@link Event#uid} */
+    public final String uid;
+    /** {@link Event#url} */
+    public final String url;
+    /** {@link Event#created} or {@link EventTable#none}. */
+    public final long created;
+    /** {@link Event#modified} or {@link EventTable#none}. */
+    public final long modified;
+    /** {@link Event#summary} */
+    public final String summary;
+    /** {@link Event#description} */
+    public final String description;
+    /** {@link Event#categories}, do not modify! */
+    public final String[] categories;
+    /** {@link Event#location} */
+    public final String location;
+
+    /**
+     * Create a new Record instance.
+     * @param hidden      {@link Record#hidden}
+     * @param uid         {@link Record#uid}
+     * @param url         {@link Record#url}
+     * @param created     {@link Record#created}
+     * @param modified    {@link Record#modified}
+     * @param summary     {@link Record#summary}
+     * @param description {@link Record#description}
+     * @param categories  {@link Record#categories}
+     * @param location    {@link Record#location}
+     */
+    public Record(
+      boolean hidden,
+      String uid,
+      String url,
+      long created,
+      long modified,
+      String summary,
+      String description,
+      String[] categories,
+      String location
+    ) {
+      this.hidden = hidden;
+      this.uid = uid;
+      this.url = url;
+      this.created = created;
+      this.modified = modified;
+      this.summary = summary;
+      this.description = description;
+      this.categories = categories;
+      this.location = location;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (obj == this) return true;
+      if (!(obj instanceof Record)) return false;
+      var record = (Record)obj;
+      return
+        record.hidden == hidden &&
+        record.created == created &&
+        record.modified == modified &&
+        Objects.equals(record.uid, uid) &&
+        Objects.equals(record.url, url) &&
+        Objects.equals(record.summary, summary) &&
+        Objects.equals(record.description, description) &&
+        Arrays.equals(record.categories, categories) &&
+        Objects.equals(record.location, location);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(uid, created, modified, summary);
+    }
+  }
+
+  private final Record[] records;
+  private final long[] starts;
+  private final long[] ends;
+
+  /**
+   * Create a new EventTable instance, the arrays are not copied and must not be modified afterwards.
+   * @param records Shared record of each event.
+   * @param starts Start timestamp of each event or {@link EventTable#none}.
+   * @param ends End timestamp of each event or {@link EventTable#none}.
+   */
+  public EventTable(Record[] records, long[] starts, long[] ends) {
+    this.records = records;
+    this.starts = starts;
+    this.ends = ends;
+  }
+
+  /**
+   * Get the number of events in this table.
+   * @return Event count.
+   */
+  public int size() {
+    return records.length;
+  }
+
+  /**
+   * Get the shared record of an event.
+   * @param index Index of the event.
+   * @return Record instance.
+   */
+  public Record getRecord(int index) {
+    return records[index];
+  }
+
+  /**
+   * Get the start timestamp of an event.
+   * @param index Index of the event.
+   * @return {@link Event#start} or {@link EventTable#none}.
+   */
+  public long getStart(int index) {
+    return starts[index];
+  }
+
+  /**
+   * Get the end timestamp of an event.
+   * @param index Index of the event.
+   * @return {@link Event#end} or {@link EventTable#none}.
+   */
+  public long getEnd(int index) {
+    return ends[index];
+  }
+
+  /**
+   * Get the duration of an event.
+   * @param index Index of the event.
+   * @return {@link Event#duration} or {@link EventTable#none}.
+   */
+  public long getDuration(int index) {
+    var start = starts[index];
+    var end = ends[index];
+    return start != none && end != none ? Math.max(end - start, 0) : none;
+  }
+}
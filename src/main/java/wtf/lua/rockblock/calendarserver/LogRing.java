@@ -0,0 +1,165 @@
+package wtf.lua.rockblock.calendarserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * LogRing hands log records from any number of threads to a single background thread, which passes them on in batches.
+ * Records are stored in a bounded lock-free ring buffer, adding one never blocks or takes a lock: if the buffer is full the record
+ * is dropped (and counted) instead, so that slow log output can't hold up the threads producing the records.
+ *
+ * <p>
+ * Copyright (C) 2020 Lua MacDougall
+ * <br/><br/>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <br/><br/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * <br/><br/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see &lt;https://www.gnu.org/licenses/&gt;.
+ * </p>
+ *
+ * @author Lua MacDougall &lt;luawhat@gmail.com&gt;
+ */
+public final class LogRing<T> implements AutoCloseable {
+  // How long the background thread sleeps for when there is nothing to drain
+  private static final long drainInterval = TimeUnit.MILLISECONDS.toNanos(10);
+
+  // Slots + the position that each slot expects next (a slot is free for position "p" when its sequence is "p",
+  // and holds the record of position "p" when its sequence is "p + 1")
+  private final Object[] buffer;
+  private final AtomicLongArray sequences;
+  private final int mask;
+
+  // Next position to write (shared by every producer) + to read (only used by the background thread)
+  private final AtomicLong tail;
+  private long head;
+
+  private final int batchSize;
+  private final Consumer<List<T>> sink;
+  private final LongAdder dropped;
+
+  private final Thread thread;
+  private volatile boolean closed;
+
+  /**
+   * Create a new LogRing instance and start its background thread.
+   * @param name Name of the background thread.
+   * @param capacity Number of records that may wait to be drained at once, rounded up to a power of two.
+   * @param batchSize Maximum number of records passed to "sink" at once.
+   * @param sink Receives every batch of records on the background thread, in the order they were added (per producing thread).
+   */
+  public LogRing(String name, int capacity, int batchSize, Consumer<List<T>> sink) {
+    var size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+    buffer = new Object[size];
+    sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) sequences.set(i, i);
+    mask = size - 1;
+
+    tail = new AtomicLong();
+
+    this.batchSize = Math.max(batchSize, 1);
+    this.sink = sink;
+    dropped = new LongAdder();
+
+    thread = new Thread(this::drain, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Add a record, without waiting.
+   * @param record Record to add.
+   * @return Boolean indicating if the record was added, "false" if the buffer is full (or the ring is closed) and it was dropped.
+   */
+  public boolean offer(T record) {
+    if (closed) {
+      dropped.increment();
+      return false;
+    }
+
+    var position = tail.get();
+    while (true) {
+      var index = (int)(position & mask);
+      var difference = sequences.get(index) - position;
+      if (difference == 0) {
+        // The slot is free, claim the position
+        if (tail.compareAndSet(position, position + 1)) {
+          buffer[index] = record;
+          sequences.set(index, position + 1);
+          return true;
+        }
+        position = tail.get();
+      } else if (difference < 0) {
+        // The slot still holds a record from one lap ago, the buffer is full
+        dropped.increment();
+        return false;
+      } else {
+        // Another producer claimed the position first
+        position = tail.get();
+      }
+    }
+  }
+
+  /**
+   * Get the number of records that were dropped because the buffer was full.
+   * @return Dropped record count.
+   */
+  public long getDropped() {
+    return dropped.sum();
+  }
+
+  /**
+   * Stop the background thread once it has drained every record added so far, new records are dropped.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    LockSupport.unpark(thread);
+    try {
+      thread.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException error) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void drain() {
+    var batch = new ArrayList<T>(batchSize);
+    while (true) {
+      // Read "closed" first, so that every record added before closing is drained
+      var last = closed;
+      while (poll(batch)) {
+        sink.accept(batch);
+        batch.clear();
+      }
+      if (last) return;
+      LockSupport.parkNanos(this, drainInterval);
+    }
+  }
+
+  // Move up to "batchSize" records into "batch", returns "false" if there were none
+  @SuppressWarnings("unchecked")
+  private boolean poll(List<T> batch) {
+    while (batch.size() < batchSize) {
+      var index = (int)(head & mask);
+      if (sequences.get(index) != head + 1) break;
+      batch.add((T)buffer[index]);
+      buffer[index] = null;
+      sequences.set(index, head + buffer.length);
+      head++;
+    }
+    return !batch.isEmpty();
+  }
+}
@@ -1,5 +1,7 @@
 package wtf.lua.rockblock.calendarserver;
 
+import java.time.LocalDate;
+import java.time.ZoneOffset;
 import java.util.regex.Pattern;
 
 /**
@@ -54,6 +56,46 @@ public final class Month {
     expression = String.format("%04d-%02d", year, month);
   }
 
+  /**
+   * Get the first instant of this month.
+   * @return Milliseconds-since-1970 (UTC) timestamp of the first millisecond of this month (in UTC).
+   */
+  public long getStart() {
+    return LocalDate.of(year, month, 1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+  }
+
+  /**
+   * Get the first instant after this month.
+   * @return Milliseconds-since-1970 (UTC) timestamp of the first millisecond of the following month (in UTC).
+   */
+  public long getEnd() {
+    return LocalDate.of(year, month, 1).plusMonths(1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+  }
+
+  /**
+   * Get the month that is a number of months away from this one.
+   * @param months Number of months to add, may be negative.
+   * @return Month instance.
+   * @throws InvalidMonthException If the resulting year is out of range.
+   */
+  public Month plus(int months) throws InvalidMonthException {
+    var index = year * 12 + (month - 1) + months;
+    return new Month(Math.floorDiv(index, 12), Math.floorMod(index, 12) + 1);
+  }
+
+  /**
+   * Get the current month (in UTC).
+   * @return Month instance.
+   */
+  public static Month current() {
+    var date = LocalDate.now(ZoneOffset.UTC);
+    try {
+      return new Month(date.getYear(), date.getMonthValue());
+    } catch (InvalidMonthException error) {
+      throw new IllegalStateException(error);
+    }
+  }
+
   /**
    * Convert this Month instance into a string.
    * @return YYYY-MM date expression string.
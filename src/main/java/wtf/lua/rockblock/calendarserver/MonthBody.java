@@ -0,0 +1,199 @@
+package wtf.lua.rockblock.calendarserver;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.IllegalReferenceCountException;
+
+/**
+ * MonthBody holds the calendar month data returned by {@link CalendarJsonProvider} for a single month.
+ * The JSON encoding of every field is always present, every other {@link BodyFormat} and {@link EventProjection} is produced on first use and then kept alongside it.
+ * Encodings are stored in buffers from a {@link BodyAllocator} (possibly off-heap), so MonthBody is reference counted:
+ * the cache holds one reference and everyone else must {@link MonthBody#tryRetain} it while using it, and release it afterwards.
+ *
+ * <p>
+ * Copyright (C) 2020 Lua MacDougall
+ * <br/><br/>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <br/><br/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * <br/><br/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see &lt;https://www.gnu.org/licenses/&gt;.
+ * </p>
+ *
+ * @author Lua MacDougall &lt;luawhat@gmail.com&gt;
+ */
+public final class MonthBody extends AbstractReferenceCounted {
+  /** Events of this month. */
+  public final EventTable events;
+  /** Hash of the JSON body, bodies with equal hashes have the same content. */
+  public final long contentHash;
+  /** Trace of the update that generated this body, or "null" if it wasn't generated by an update. */
+  public final Trace trace;
+
+  private final BodyAllocator allocator;
+  // Can the encodings be stored in the allocator? If not, this body is never cached and lives on the heap
+  private final boolean cached;
+
+  // Calendar month data JSON body with every field
+  private final ByteBuf json;
+  // Other encodings of "events", produced on demand and keyed by format + projection
+  private final Map<String, ByteBuf> variants;
+
+  private MonthBody(EventTable events, byte[] json, BodyAllocator allocator, Trace trace) {
+    this.events = events;
+    this.allocator = allocator;
+    this.trace = trace;
+
+    contentHash = hash(json);
+
+    var buffer = allocator.allocate(json);
+    cached = buffer != null;
+    this.json = cached ? buffer : Unpooled.wrappedBuffer(json);
+
+    variants = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Create a new MonthBody instance.
+   * @param events Events of this month.
+   * @param json Calendar month data JSON body with every field (as a byte array).
+   * @param allocator Allocator to store encodings with.
+   * @param trace Trace of the update that generated this body, may be "null".
+   * @return MonthBody instance with a reference count of 1.
+   */
+  public static MonthBody of(EventTable events, byte[] json, BodyAllocator allocator, Trace trace) {
+    return new MonthBody(events, json, allocator, trace);
+  }
+
+  /**
+   * Create a new MonthBody instance, encoding the JSON body with every field from "events".
+   * @param events Events of this month.
+   * @param allocator Allocator to store encodings with.
+   * @param trace Trace of the update that generated this body, may be "null".
+   * @return MonthBody instance with a reference count of 1.
+   */
+  public static MonthBody of(EventTable events, BodyAllocator allocator, Trace trace) {
+    try {
+      return new MonthBody(events, EventProjection.all.write(BodyFormat.JSON.getMapper().getFactory(), events), allocator, trace);
+    } catch (IOException error) {
+      throw new UncheckedIOException(error);
+    }
+  }
+
+  /**
+   * Could this body's encodings be stored within the cache byte budget?
+   * Bodies that are not cached live on the heap and are never released by the cache.
+   * @return Boolean indicating if this body may be cached.
+   */
+  public boolean isCached() {
+    return cached;
+  }
+
+  /**
+   * Get the JSON body with every field.
+   * The returned buffer is not retained and is only valid while this body is retained, do not modify or release it.
+   * @return JSON body buffer.
+   */
+  public ByteBuf getJson() {
+    return json;
+  }
+
+  /**
+   * Try to retain this body, failing if it has already been freed.
+   * @return Boolean indicating if the body was retained (and must be released later).
+   */
+  public boolean tryRetain() {
+    try {
+      retain();
+      return true;
+    } catch (IllegalReferenceCountException error) {
+      return false;
+    }
+  }
+
+  /**
+   * Check if the body has already been encoded in a format + projection, meaning {@link MonthBody#get} will return immediately.
+   * @param format Format to check.
+   * @param projection Projection to check.
+   * @return Boolean indicating if "format" + "projection" is available without any work.
+   */
+  public boolean isEncoded(BodyFormat format, EventProjection projection) {
+    return isCanonical(format, projection) || variants.containsKey(variantKey(format, projection));
+  }
+
+  /**
+   * Get the body encoded in a format + projection, encoding it if this is the first time it was requested.
+   * Every variant is only encoded once (as long as it fits into the cache byte budget), even if requested from many threads at the same time.
+   * This body must be retained while calling this method.
+   * @param format Format to retrieve.
+   * @param projection Projection to retrieve.
+   * @return Retained buffer with the calendar month data body in "format" with the fields of "projection", the caller must release it.
+   */
+  public ByteBuf get(BodyFormat format, EventProjection projection) {
+    if (isCanonical(format, projection)) return json.retainedDuplicate();
+
+    if (!cached) return Unpooled.wrappedBuffer(encode(format, projection));
+
+    // If the variant doesn't fit into the budget, it is returned without being stored
+    var encoded = new byte[1][];
+    var variant = variants.computeIfAbsent(variantKey(format, projection), key -> {
+      encoded[0] = encode(format, projection);
+      return allocator.allocate(encoded[0]);
+    });
+    if (variant != null) return variant.retainedDuplicate();
+    return Unpooled.wrappedBuffer(encoded[0] != null ? encoded[0] : encode(format, projection));
+  }
+
+  @Override
+  public MonthBody touch(Object hint) {
+    return this;
+  }
+
+  @Override
+  protected void deallocate() {
+    if (!cached) return;
+    allocator.free(json);
+    for (var variant : variants.values()) allocator.free(variant);
+  }
+
+  private byte[] encode(BodyFormat format, EventProjection projection) {
+    try {
+      return projection.write(format.getMapper().getFactory(), events);
+    } catch (IOException error) {
+      throw new UncheckedIOException(error);
+    }
+  }
+
+  private static boolean isCanonical(BodyFormat format, EventProjection projection) {
+    return format == BodyFormat.JSON && projection.isAll();
+  }
+
+  private static String variantKey(BodyFormat format, EventProjection projection) {
+    return format.name() + "|" + projection.key;
+  }
+
+  private static long hash(byte[] bytes) {
+    try {
+      var digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+      return ByteBuffer.wrap(digest).getLong();
+    } catch (NoSuchAlgorithmException error) {
+      throw new IllegalStateException(error);
+    }
+  }
+}
@@ -0,0 +1,129 @@
+package wtf.lua.rockblock.calendarserver;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * PrerenderIndex keeps track of the files in a pre-render directory, so requests for months that haven't been pre-rendered
+ * don't have to touch the disk (or leave the event loop) to find out, see {@link Prerenderer}.
+ * The directory is listed again in the background once the listing is older than a few seconds, so months that are pre-rendered
+ * while the server is running are picked up without a restart.
+ *
+ * <p>
+ * Copyright (C) 2020 Lua MacDougall
+ * <br/><br/>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <br/><br/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * <br/><br/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see &lt;https://www.gnu.org/licenses/&gt;.
+ * </p>
+ *
+ * @author Lua MacDougall &lt;luawhat@gmail.com&gt;
+ */
+public final class PrerenderIndex {
+  private static final Logger log = LoggerFactory.getLogger(PrerenderIndex.class);
+
+  // Milliseconds a listing is used for before the directory is listed again
+  private static final long rescanPeriod = 10000;
+
+  // Only the files Prerenderer writes are indexed (not its temporary files), see Prerenderer#getPath
+  private static final Pattern fileNamePattern = Pattern.compile("^\\d{4}-\\d{2}\\.json(\\.gz)?$");
+
+  /**
+   * Listing is one listing of a directory, it is replaced as a whole so lookups never see a partial listing.
+   */
+  private static final class Listing {
+    public final String directory;
+    public final Set<String> fileNames;
+    public final long listed;
+
+    public Listing(String directory, Set<String> fileNames, long listed) {
+      this.directory = directory;
+      this.fileNames = fileNames;
+      this.listed = listed;
+    }
+  }
+
+  private final Executor executor;
+  private final AtomicBoolean rescanning = new AtomicBoolean();
+  private volatile Listing listing;
+
+  /**
+   * Create a new PrerenderIndex instance, the directory is listed right away.
+   * @param executor Executor to list the directory on once the listing is outdated.
+   * @param directory Directory to index, or "null" if pre-rendering is disabled.
+   */
+  public PrerenderIndex(Executor executor, String directory) {
+    this.executor = executor;
+    rescan(directory);
+  }
+
+  /**
+   * List a (new) directory right away, blocking until it has been listed.
+   * @param directory Directory to index, or "null" if pre-rendering is disabled.
+   */
+  public void rescan(String directory) {
+    listing = list(directory);
+  }
+
+  /**
+   * Check if a month has been pre-rendered, without touching the disk.
+   * The file might still have been deleted since the directory was listed, so opening it can fail all the same.
+   * @param month Month to check.
+   * @param gzip Check for the gzip compressed copy instead of the plain one.
+   * @return Boolean indicating if the file of "month" was in the last listing of the directory.
+   */
+  public boolean contains(Month month, boolean gzip) {
+    var current = listing;
+    if (current.directory == null) return false;
+
+    if (System.currentTimeMillis() - current.listed > rescanPeriod && rescanning.compareAndSet(false, true)) {
+      executor.execute(() -> {
+        try {
+          // A reload may have replaced the directory (and its listing) in the meantime
+          var updated = list(current.directory);
+          if (listing == current) listing = updated;
+        } finally {
+          rescanning.set(false);
+        }
+      });
+    }
+
+    return current.fileNames.contains(Prerenderer.getPath(current.directory, month, gzip).getFileName().toString());
+  }
+
+  private static Listing list(String directory) {
+    var fileNames = new HashSet<String>();
+    if (directory != null) {
+      try (var files = Files.list(Path.of(directory))) {
+        files.forEach(file -> {
+          var fileName = file.getFileName().toString();
+          if (fileNamePattern.matcher(fileName).matches()) fileNames.add(fileName);
+        });
+      } catch (NoSuchFileException error) {
+        // Nothing has been pre-rendered yet
+      } catch (IOException | RuntimeException error) {
+        log.warn("Failed to list the pre-render directory {}", directory, error);
+      }
+    }
+    return new Listing(directory, Set.copyOf(fileNames), System.currentTimeMillis());
+  }
+}
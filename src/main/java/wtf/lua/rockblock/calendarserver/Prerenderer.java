@@ -0,0 +1,143 @@
+package wtf.lua.rockblock.calendarserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Prerenderer writes the JSON body of months (and a gzip compressed copy of it) to files in {@link Config#prerenderDirectory}.
+ * {@link ServerChannelHandler} sends these files straight from the disk (without reading them into the JVM), so months that no longer
+ * change (like archived years) don't take up any room in the cache. Files are replaced atomically, so re-rendering is safe while serving.
+ *
+ * <p>
+ * Copyright (C) 2020 Lua MacDougall
+ * <br/><br/>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <br/><br/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * <br/><br/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see &lt;https://www.gnu.org/licenses/&gt;.
+ * </p>
+ *
+ * @author Lua MacDougall &lt;luawhat@gmail.com&gt;
+ */
+public final class Prerenderer {
+  private static final Logger log = LoggerFactory.getLogger(Prerenderer.class);
+
+  private final Executor executor;
+  private final Config config;
+  private final String directory;
+  private final CalendarJsonProvider calendarJsonProvider;
+
+  /**
+   * Create a new Prerenderer instance.
+   * @param executor Executor to write files with.
+   * @param config Application configuration.
+   * @param directory Directory to write the pre-rendered months to, see {@link Tenant#getPrerenderDirectory}.
+   * @param calendarJsonProvider CalendarJsonProvider to generate months with.
+   */
+  public Prerenderer(Executor executor, Config config, String directory, CalendarJsonProvider calendarJsonProvider) {
+    this.executor = executor;
+    this.config = config;
+    this.directory = directory;
+    this.calendarJsonProvider = calendarJsonProvider;
+  }
+
+  /**
+   * Get the path of a pre-rendered month.
+   * @param directory Directory containing pre-rendered months.
+   * @param month Month to get the path of.
+   * @param gzip Get the path of the gzip compressed copy?
+   * @return Path of the file, which may not exist.
+   */
+  public static Path getPath(String directory, Month month, boolean gzip) {
+    return Path.of(directory, month.expression + (gzip ? ".json.gz" : ".json"));
+  }
+
+  /**
+   * Render a batch of months, at most {@link Config#warmupConcurrency} at a time.
+   * @param months Months to render.
+   * @return CompletableFuture that completes with the number of months that were rendered successfully.
+   */
+  public CompletableFuture<Integer> render(List<Month> months) {
+    try {
+      Files.createDirectories(Path.of(directory));
+    } catch (IOException error) {
+      return CompletableFuture.failedFuture(error);
+    }
+
+    var queue = new ConcurrentLinkedQueue<>(months);
+    var succeeded = new AtomicInteger();
+
+    var workers = new CompletableFuture<?>[Math.min(Math.max(config.warmupConcurrency, 1), months.size())];
+    for (int i = 0; i < workers.length; i++) workers[i] = renderNext(queue, succeeded);
+
+    return CompletableFuture.allOf(workers).thenApply(ignored -> succeeded.get());
+  }
+
+  private CompletableFuture<Void> renderNext(Queue<Month> queue, AtomicInteger succeeded) {
+    var month = queue.poll();
+    if (month == null) return CompletableFuture.completedFuture(null);
+
+    return calendarJsonProvider
+      .update(month, false, PriorityExecutor.Priority.BACKGROUND)
+      .thenAcceptAsync(body -> {
+        try {
+          write(getPath(directory, month, false), body.getJson(), false);
+          write(getPath(directory, month, true), body.getJson(), true);
+        } catch (IOException error) {
+          throw new UncheckedIOException(error);
+        } finally {
+          body.release();
+        }
+      }, executor)
+      .handle((ignored, error) -> {
+        if (error == null) {
+          log.info("Rendered {}", month);
+          succeeded.incrementAndGet();
+        } else {
+          log.error("Failed to render {}", month, error);
+        }
+        return null;
+      })
+      .thenCompose(ignored -> renderNext(queue, succeeded));
+  }
+
+  // Write "content" to a temporary file next to "path", then move it into place so readers never see a partial file
+  private static void write(Path path, ByteBuf content, boolean gzip) throws IOException {
+    var temporary = path.resolveSibling(path.getFileName() + ".tmp");
+    try {
+      try (
+        var file = Files.newOutputStream(temporary);
+        OutputStream output = gzip ? new GZIPOutputStream(file, 8192) : file
+      ) {
+        content.getBytes(content.readerIndex(), output, content.readableBytes());
+      }
+      Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+}
@@ -0,0 +1,220 @@
+package wtf.lua.rockblock.calendarserver;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * PriorityExecutor orders tasks by priority before handing them to an underlying {@link Executor}, so that work a client is waiting on
+ * runs ahead of speculative background work (warm-up, refreshes, prefetching).
+ * Background tasks are queued as if they had been submitted "agingDelay" milliseconds later than they were,
+ * meaning they still run once they have waited that long, even while interactive tasks keep arriving.
+ *
+ * <p>
+ * Copyright (C) 2020 Lua MacDougall
+ * <br/><br/>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <br/><br/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * <br/><br/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see &lt;https://www.gnu.org/licenses/&gt;.
+ * </p>
+ *
+ * @author Lua MacDougall &lt;luawhat@gmail.com&gt;
+ */
+public final class PriorityExecutor {
+  /**
+   * Priority of a task.
+   */
+  public static enum Priority {
+    /** A client is waiting on the result. */
+    INTERACTIVE,
+    /** Nobody is waiting on the result yet. */
+    BACKGROUND
+  }
+
+  /**
+   * Ticket is shared by every task of one operation, so the operation can be promoted or cancelled as a whole.
+   */
+  public static final class Ticket {
+    private volatile Priority priority;
+
+    private volatile boolean cancelled;
+    // Callbacks run on cancellation, guarded by "this"
+    private List<Runnable> cancelCallbacks;
+
+    /**
+     * Create a new Ticket instance.
+     * @param priority Initial priority of the operation.
+     */
+    public Ticket(Priority priority) {
+      this.priority = priority;
+      cancelCallbacks = new ArrayList<>();
+    }
+
+    /**
+     * Get the current priority of the operation.
+     * @return Priority.
+     */
+    public Priority getPriority() {
+      return priority;
+    }
+
+    /**
+     * Has the operation been cancelled?
+     * @return Boolean indicating if the remaining tasks of the operation should give up.
+     */
+    public boolean isCancelled() {
+      return cancelled;
+    }
+
+    /**
+     * Register a callback that aborts part of the operation (like a download) once it is cancelled.
+     * @param callback Callback to run, straight away if the operation has already been cancelled.
+     */
+    public void onCancel(Runnable callback) {
+      synchronized (this) {
+        if (!cancelled) {
+          cancelCallbacks.add(callback);
+          return;
+        }
+      }
+      callback.run();
+    }
+
+    /**
+     * Cancel the operation, running every registered callback.
+     */
+    public void cancel() {
+      List<Runnable> callbacks;
+      synchronized (this) {
+        if (cancelled) return;
+        cancelled = true;
+        callbacks = cancelCallbacks;
+        cancelCallbacks = null;
+      }
+      for (var callback : callbacks) callback.run();
+    }
+  }
+
+  private static final class Task implements Comparable<Task> {
+    private final Runnable runnable;
+    private final Ticket ticket;
+    private final long submitted;
+    private final long sequence;
+    private final long key;
+
+    public Task(Runnable runnable, Ticket ticket, long submitted, long sequence, long key) {
+      this.runnable = runnable;
+      this.ticket = ticket;
+      this.submitted = submitted;
+      this.sequence = sequence;
+      this.key = key;
+    }
+
+    @Override
+    public int compareTo(Task task) {
+      if (key != task.key) return Long.compare(key, task.key);
+      return Long.compare(sequence, task.sequence);
+    }
+  }
+
+  private final Executor executor;
+  private final long agingDelay;
+  private final Clock clock;
+
+  // Waiting tasks, ordered by their key, guarded by "this"
+  private final PriorityQueue<Task> queue;
+  private long sequence;
+
+  /**
+   * Create a new PriorityExecutor instance.
+   * @param executor Executor to run the tasks on.
+   * @param agingDelay Time in milliseconds that background tasks yield to interactive tasks for.
+   */
+  public PriorityExecutor(Executor executor, long agingDelay) {
+    this(executor, agingDelay, Clock.systemUTC());
+  }
+
+  /**
+   * Create a new PriorityExecutor instance that reads the time from a clock.
+   * @param executor Executor to run the tasks on.
+   * @param agingDelay Time in milliseconds that background tasks yield to interactive tasks for.
+   * @param clock Clock that task submission times are read from.
+   */
+  public PriorityExecutor(Executor executor, long agingDelay, Clock clock) {
+    this.executor = executor;
+    this.agingDelay = agingDelay;
+    this.clock = clock;
+    queue = new PriorityQueue<>();
+  }
+
+  /**
+   * Get an Executor that runs its tasks with the priority of a ticket.
+   * @param ticket Ticket of the operation the tasks belong to.
+   * @return Executor instance.
+   */
+  public Executor withTicket(Ticket ticket) {
+    return runnable -> execute(runnable, ticket);
+  }
+
+  /**
+   * Queue a task, it runs once every task ahead of it has started.
+   * @param runnable Task to run.
+   * @param ticket Ticket of the operation the task belongs to.
+   */
+  public void execute(Runnable runnable, Ticket ticket) {
+    var submitted = clock.millis();
+    synchronized (this) {
+      queue.add(new Task(runnable, ticket, submitted, sequence++, key(ticket, submitted)));
+    }
+    // Every queued task is matched by one of these, which runs whichever task is first at that point
+    executor.execute(this::runNext);
+  }
+
+  /**
+   * Raise the priority of an operation to {@link Priority#INTERACTIVE}, including the tasks of it that are already waiting.
+   * @param ticket Ticket of the operation.
+   */
+  public void promote(Ticket ticket) {
+    if (ticket.priority == Priority.INTERACTIVE) return;
+    ticket.priority = Priority.INTERACTIVE;
+
+    synchronized (this) {
+      var promoted = new ArrayList<Task>();
+      queue.removeIf(task -> task.ticket == ticket && promoted.add(task));
+      for (var task : promoted) {
+        queue.add(new Task(task.runnable, ticket, task.submitted, task.sequence, key(ticket, task.submitted)));
+      }
+    }
+  }
+
+  /**
+   * Get the number of tasks that are waiting to run.
+   * @return Task count.
+   */
+  public synchronized int getQueuedCount() {
+    return queue.size();
+  }
+
+  private void runNext() {
+    Task task;
+    synchronized (this) {
+      task = queue.poll();
+    }
+    if (task != null) task.runnable.run();
+  }
+
+  private long key(Ticket ticket, long submitted) {
+    return ticket.priority == Priority.BACKGROUND ? submitted + agingDelay : submitted;
+  }
+}
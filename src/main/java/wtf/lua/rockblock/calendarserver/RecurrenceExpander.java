@@ -0,0 +1,147 @@
+package wtf.lua.rockblock.calendarserver;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+
+import biweekly.ICalendar;
+import biweekly.component.VEvent;
+
+/**
+ * RecurrenceExpander expands recurring VEVENTs (RRULE/RDATE/EXDATE/EXRULE) into the start times of their occurrences within a month.
+ * Expansions are memoized per series and month, keyed by the recurrence properties, so refreshing a month reuses the
+ * expansion of every series that did not change.
+ *
+ * <p>
+ * Copyright (C) 2020 Lua MacDougall
+ * <br/><br/>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <br/><br/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * <br/><br/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see &lt;https://www.gnu.org/licenses/&gt;.
+ * </p>
+ *
+ * @author Lua MacDougall &lt;luawhat@gmail.com&gt;
+ */
+public final class RecurrenceExpander {
+  // Maximum number of memoized expansions
+  private static final int memoCapacity = 4096;
+
+  private static final TimeZone utc = TimeZone.getTimeZone("UTC");
+
+  private final int limit;
+
+  // Series + month -> occurrence start times, least recently used expansions are dropped first
+  private final Map<List<Object>, long[]> memo;
+
+  /**
+   * Create a new RecurrenceExpander instance.
+   * @param limit Maximum number of occurrences of a single series within one month.
+   */
+  public RecurrenceExpander(int limit) {
+    this.limit = limit;
+
+    memo = new LinkedHashMap<>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<List<Object>, long[]> eldest) {
+        return size() > memoCapacity;
+      }
+    };
+  }
+
+  /**
+   * Check if a VEVENT is the master of a recurring series.
+   * @param vevent VEVENT to check.
+   * @return Boolean indicating if "vevent" has an RRULE or RDATE and should be expanded.
+   */
+  public static boolean isRecurring(VEvent vevent) {
+    return
+      vevent.getDateStart() != null &&
+      vevent.getRecurrenceId() == null &&
+      (vevent.getRecurrenceRule() != null || !vevent.getRecurrenceDates().isEmpty());
+  }
+
+  /**
+   * Expand a recurring VEVENT into the start times of the occurrences that overlap a month.
+   * @param calendar VCALENDAR containing "vevent" (used to resolve time zones).
+   * @param vevent Recurring VEVENT, see {@link RecurrenceExpander#isRecurring}.
+   * @param month Month to expand the series within.
+   * @param duration Duration of each occurrence in milliseconds.
+   * @param overrides Start times of occurrences that are replaced by RECURRENCE-ID VEVENTs and should be skipped.
+   * @return Occurrence start times as milliseconds-since-1970 (UTC) timestamps, at most "limit" of them.
+   */
+  public long[] expand(ICalendar calendar, VEvent vevent, Month month, long duration, Set<Long> overrides) {
+    var dateStart = vevent.getDateStart();
+    var assignment = calendar.getTimezoneInfo().getTimezone(dateStart);
+    var timezone = assignment != null ? assignment.getTimeZone() : utc;
+
+    var key = Arrays.<Object>asList(
+      getUid(vevent),
+      month,
+      dateStart.getValue(),
+      timezone.getID(),
+      duration,
+      vevent.getRecurrenceRule(),
+      vevent.getRecurrenceDates(),
+      vevent.getExceptionDates(),
+      vevent.getExceptionRules(),
+      overrides
+    );
+
+    synchronized (memo) {
+      var occurrences = memo.get(key);
+      if (occurrences != null) return occurrences;
+    }
+
+    var occurrences = iterate(vevent, timezone, month, duration, overrides);
+
+    synchronized (memo) {
+      memo.put(key, occurrences);
+    }
+    return occurrences;
+  }
+
+  private long[] iterate(VEvent vevent, TimeZone timezone, Month month, long duration, Set<Long> overrides) {
+    var windowStart = month.getStart();
+    var windowEnd = month.getEnd();
+
+    var occurrences = new long[Math.min(limit, 64)];
+    var count = 0;
+
+    var iterator = vevent.getDateIterator(timezone);
+    // Skip straight to the first occurrence that could overlap the month
+    iterator.advanceTo(new Date(windowStart - duration));
+
+    while (iterator.hasNext() && count < limit) {
+      var start = iterator.next().getTime();
+      if (start >= windowEnd) break;
+      if (start + Math.max(duration, 1) <= windowStart) continue;
+      if (overrides.contains(start)) continue;
+
+      if (count == occurrences.length)
+        occurrences = Arrays.copyOf(occurrences, Math.min(limit, count * 2));
+      occurrences[count++] = start;
+    }
+
+    return Arrays.copyOf(occurrences, count);
+  }
+
+  private static String getUid(VEvent vevent) {
+    var uid = vevent.getUid();
+    return uid != null ? uid.getValue() : null;
+  }
+}
@@ -1,5 +1,10 @@
 package wtf.lua.rockblock.calendarserver;
 
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -9,9 +14,10 @@ import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.codec.http.HttpObjectAggregator;
-import io.netty.handler.codec.http.HttpRequestDecoder;
-import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpServerKeepAliveHandler;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import io.netty.handler.timeout.IdleStateHandler;
 
 /**
  * Server provides the HTTP API that is used to access data returned from {@link CalendarJsonProvider}.
@@ -38,24 +44,39 @@ import io.netty.handler.codec.http.HttpResponseEncoder;
 public final class Server {
   private static final Logger log = LoggerFactory.getLogger(Server.class);
 
-  private final Config config;
+  private final ConfigWatcher configWatcher;
 
   private final ServerBootstrap bootstrap;
 
+  // Number of open client connections + number of connections closed because there were too many
+  private final AtomicInteger connections;
+  private final AtomicInteger rejected;
+
   /**
    * Create a new Server instance.
    * @param groupAccept Event loop group to use for accepting connections.
    * @param groupServe Event loop group to use for processing clients.
-   * @param config Application configuration.
-   * @param calendarJsonProvider Instance of CalendarJsonProvider to serve data from.
+   * @param executor Executor to read pre-rendered files on (opening them blocks).
+   * @param configWatcher Application configuration, the port is only read on startup.
+   * @param defaultTenant Tenant served without a path prefix.
+   * @param tenants Tenants served under "/&lt;name&gt;/", keyed by name.
+   * @param admissionController AdmissionController that limits how many uncached months clients may request.
+   * @param accessLog AccessLog that responses are written to, or "null" to not log them.
    */
   public Server(
     EventLoopGroup groupAccept,
     EventLoopGroup groupServe,
-    Config config,
-    CalendarJsonProvider calendarJsonProvider
+    Executor executor,
+    ConfigWatcher configWatcher,
+    Tenant defaultTenant,
+    Map<String, Tenant> tenants,
+    AdmissionController admissionController,
+    AccessLog accessLog
   ) {
-    this.config = config;
+    this.configWatcher = configWatcher;
+
+    connections = new AtomicInteger();
+    rejected = new AtomicInteger();
 
     bootstrap = new ServerBootstrap();
     bootstrap.group(groupAccept, groupServe);
@@ -66,14 +87,31 @@ public final class Server {
     bootstrap.childHandler(new ChannelInitializer<SocketChannel>() {
       @Override
       protected void initChannel(SocketChannel channel) throws Exception {
+        var config = configWatcher.get();
+
+        var open = connections.incrementAndGet();
+        channel.closeFuture().addListener(future -> connections.decrementAndGet());
+        if (config.maxConnections > 0 && open > config.maxConnections) {
+          // Only every 1000th rejection is logged, so that a flood of connections doesn't flood the log too
+          if (rejected.getAndIncrement() % 1000 == 0)
+            log.warn("Too many open connections ({}), closing new connections", config.maxConnections);
+          channel.close();
+          return;
+        }
+
+        // Only bodiless GETs (and admin POSTs) are served, so requests are handled as soon as their head is decoded, without aggregation
         var pipeline = channel.pipeline();
-        pipeline.addLast(new HttpRequestDecoder());
-        pipeline.addLast(new HttpResponseEncoder());
-        pipeline.addLast(new HttpObjectAggregator(65535));
-        pipeline.addLast(new ServerChannelHandler(groupServe, config, calendarJsonProvider));
+        // Responses written while reading a batch of (pipelined) requests are flushed together
+        pipeline.addLast(new FlushConsolidationHandler(FlushConsolidationHandler.DEFAULT_EXPLICIT_FLUSH_AFTER_FLUSHES, true));
+        if (config.idleTimeout > 0)
+          pipeline.addLast(new IdleStateHandler(0, 0, config.idleTimeout, TimeUnit.MILLISECONDS));
+        pipeline.addLast(new HttpServerCodec());
+        pipeline.addLast(new HttpServerKeepAliveHandler());
+        pipeline.addLast(new ServerChannelHandler(executor, configWatcher, defaultTenant, tenants, admissionController, accessLog));
       }
     });
     bootstrap.childOption(ChannelOption.SO_KEEPALIVE, true);
+    bootstrap.childOption(ChannelOption.TCP_NODELAY, true);
   }
 
   /**
@@ -81,6 +119,7 @@ public final class Server {
    * This method stops the executing thread until the server has completed.
    */
   public void start() {
+    var config = configWatcher.get();
     try {
       log.info("Binding to port {}", config.port);
       var channel = bootstrap.bind(config.port).sync().channel();
@@ -1,9 +1,23 @@
 package wtf.lua.rockblock.calendarserver;
 
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
 import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
@@ -11,16 +25,28 @@ import org.slf4j.LoggerFactory;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
-import io.netty.channel.ChannelOutboundInvoker;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.DefaultFileRegion;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
-import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpMessage;
 import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.ReferenceCountUtil;
 
 /**
  * ServerChannelHandler handles requests to the HTTP API and is used by {@link Server} for its Netty channel.
@@ -49,17 +75,29 @@ public final class ServerChannelHandler extends ChannelInboundHandlerAdapter {
 
   private static final class HttpContentTypes {
     public static final String text_plain = "text/plain; charset=utf-8";
-    public static final String application_json = "application/json";
+    public static final String text_event_stream = "text/event-stream";
   }
 
   private static final class HttpHeaderKeys {
+    public static final String Accept = "Accept";
+    public static final String Accept_Encoding = "Accept-Encoding";
     public static final String Access_Control_Allow_Origin = "Access-Control-Allow-Origin";
     public static final String Access_Control_Allow_Methods = "Access-Control-Allow-Methods";
     public static final String Access_Control_Allow_Headers = "Access-Control-Allow-Headers";
     public static final String Allow = "Allow";
+    public static final String Authorization = "Authorization";
+    public static final String Cache_Control = "Cache-Control";
     public static final String Connection = "Connection";
     public static final String Content_Length = "Content-Length";
+    public static final String Content_Encoding = "Content-Encoding";
     public static final String Content_Type = "Content-Type";
+    public static final String Retry_After = "Retry-After";
+    public static final String Server_Timing = "Server-Timing";
+    public static final String Timing_Allow_Origin = "Timing-Allow-Origin";
+    public static final String Transfer_Encoding = "Transfer-Encoding";
+    public static final String Vary = "Vary";
+    public static final String Warning = "Warning";
+    public static final String WWW_Authenticate = "WWW-Authenticate";
   }
 
   private final class HttpResponseWriter {
@@ -81,6 +119,10 @@ public final class ServerChannelHandler extends ChannelInboundHandlerAdapter {
 
     private ByteBuf content;
 
+    public HttpResponseWriter setContent(ByteBuf content) {
+      this.content = content;
+      return this;
+    }
     public HttpResponseWriter setContent(byte[] content) {
       this.content = Unpooled.wrappedBuffer(content);
       return this;
@@ -100,6 +142,15 @@ public final class ServerChannelHandler extends ChannelInboundHandlerAdapter {
       return this;
     }
 
+    // Cache status of the calendar data in the response, for the access log
+    private CacheStatus cache;
+
+    public HttpResponseWriter setCache(CacheStatus cache, Trace trace, Trace updateTrace) {
+      this.cache = cache;
+      if (!configWatcher.get().serverTiming) return this;
+      return setHeader(HttpHeaderKeys.Server_Timing, serverTiming(cache, trace, updateTrace));
+    }
+
     private List<String> headerKeys;
     private List<Object> headerValues;
 
@@ -113,64 +164,206 @@ public final class ServerChannelHandler extends ChannelInboundHandlerAdapter {
       return this;
     }
 
-    public void writeResponse(ChannelOutboundInvoker invoker) {
-      if (status == null)
-        status = HttpResponseStatus.OK;
-      if (content == null)
-        content = Unpooled.EMPTY_BUFFER;
-      if (contentType == null)
-        contentType = HttpContentTypes.text_plain;
-
-      var response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, content);
-      var headers = response.headers();
-
+    private void setHeaders(HttpHeaders headers) {
       if (headerKeys != null) {
         var size = headerKeys.size(); for (int i = 0; i < size; i++) {
           headers.set(headerKeys.get(i), headerValues.get(i));
         }
       }
 
-      if (config.cors) {
+      if (configWatcher.get().cors) {
         headers.set(HttpHeaderKeys.Access_Control_Allow_Origin, "*");
         headers.set(HttpHeaderKeys.Access_Control_Allow_Methods, "*");
         headers.set(HttpHeaderKeys.Access_Control_Allow_Headers, "*");
+        headers.set(HttpHeaderKeys.Timing_Allow_Origin, "*");
       }
 
       if (request != null && HttpUtil.isKeepAlive(request)) {
         headers.set(HttpHeaderKeys.Connection, "keep-alive");
       }
 
-      headers.set(HttpHeaderKeys.Content_Length, content.readableBytes());
       headers.set(HttpHeaderKeys.Content_Type, contentType);
+    }
+
+    public ChannelFuture writeResponse(ChannelHandlerContext ctx) {
+      if (status == null)
+        status = HttpResponseStatus.OK;
+      if (content == null)
+        content = Unpooled.EMPTY_BUFFER;
+      if (contentType == null)
+        contentType = HttpContentTypes.text_plain;
+
+      var response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, content);
+      var headers = response.headers();
+
+      setHeaders(headers);
+      headers.set(HttpHeaderKeys.Content_Length, content.readableBytes());
+
+      return send(ctx, request, cache, response).addListener(future -> {
+        if (!future.isSuccess())
+          log.error("Failed to send HTTP response", future.cause());
+      });
+    }
+
+    public ChannelFuture writeFileResponse(ChannelHandlerContext ctx, RandomAccessFile file) throws IOException {
+      if (status == null)
+        status = HttpResponseStatus.OK;
+      if (contentType == null)
+        contentType = HttpContentTypes.text_plain;
 
-      invoker.writeAndFlush(response).addListener(future -> {
+      var length = file.length();
+      var response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, status);
+      var headers = response.headers();
+
+      setHeaders(headers);
+      headers.set(HttpHeaderKeys.Content_Length, length);
+
+      // The file is sent by the kernel (sendfile) and closed once it has been written
+      var region = new DefaultFileRegion(file.getChannel(), 0, length);
+      return send(ctx, request, cache, response, region, LastHttpContent.EMPTY_LAST_CONTENT).addListener(future -> {
         if (!future.isSuccess())
           log.error("Failed to send HTTP response", future.cause());
       });
     }
+
+    public ChannelFuture writeStreamHead(ChannelHandlerContext ctx) {
+      if (status == null)
+        status = HttpResponseStatus.OK;
+      if (contentType == null)
+        contentType = HttpContentTypes.text_plain;
+
+      var response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, status);
+      var headers = response.headers();
+
+      setHeaders(headers);
+      headers.set(HttpHeaderKeys.Transfer_Encoding, "chunked");
+
+      return send(ctx, request, cache, response).addListener(future -> {
+        if (!future.isSuccess())
+          log.error("Failed to send HTTP response head", future.cause());
+      });
+    }
   }
 
+  private static final class PendingRequest {
+    private final int sequence;
+    private final long received;
+
+    public PendingRequest(int sequence, long received) {
+      this.sequence = sequence;
+      this.received = received;
+    }
+  }
+
+  // Executor that pre-rendered files are opened on
   private final Executor executor;
-  private final Config config;
+  private final ConfigWatcher configWatcher;
+
+  // Tenant served without a path prefix + tenants served under "/<name>/"
+  private final Tenant defaultTenant;
+  private final Map<String, Tenant> tenants;
 
-  private final CalendarJsonProvider calendarJsonProvider;
+  private final AdmissionController admissionController;
+  private final AccessLog accessLog;
 
-  public ServerChannelHandler(Executor executor, Config config, CalendarJsonProvider calendarJsonProvider) {
+  // Tenant whose event stream this channel is subscribed to ("null" if it isn't)
+  private Tenant streamTenant;
+
+  // Responses are written in the order their requests arrived (HTTP/1.1 pipelining), even if later requests complete first
+  // Everything below is only used on the channel's event loop
+  // Request -> its position on this channel + arrival time, until its response is written (requests are compared by identity, not content)
+  private final Map<HttpMessage, PendingRequest> pendingRequests = new IdentityHashMap<>();
+  // Position of the next request to arrive + of the next response to write
+  private int requestSequence;
+  private int responseSequence;
+  // Position -> responses that are waiting for the responses to earlier requests
+  private final Map<Integer, Runnable> queuedResponses = new HashMap<>();
+
+  public ServerChannelHandler(
+    Executor executor,
+    ConfigWatcher configWatcher,
+    Tenant defaultTenant,
+    Map<String, Tenant> tenants,
+    AdmissionController admissionController,
+    AccessLog accessLog
+  ) {
     this.executor = executor;
-    this.config = config;
-    this.calendarJsonProvider = calendarJsonProvider;
+    this.configWatcher = configWatcher;
+    this.defaultTenant = defaultTenant;
+    this.tenants = tenants;
+    this.admissionController = admissionController;
+    this.accessLog = accessLog;
+  }
+
+  private static final Pattern pathTrimPattern = Pattern.compile("^\\/+|\\/+$");
+  private static final Pattern listSplitPattern = Pattern.compile(",");
+  private static final Pattern parameterSplitPattern = Pattern.compile(";");
+
+  private static final byte[] batchEnd = { '}' };
+  private static final byte[] heartbeatFrame = { ':', '\n', '\n' };
+
+  private static final String eventsPath = "events";
+  private static final String batchPath = "batch";
+  private static final String readyPath = "ready";
+  private static final String adminInvalidatePath = "admin/invalidate";
+  private static final String adminRefreshPath = "admin/refresh";
+
+  /**
+   * CacheStatus is where the calendar data in a response came from, reported in the "Server-Timing" header and the access log.
+   */
+  private static enum CacheStatus {
+    HIT("hit"),
+    MISS("miss"),
+    STALE("stale"),
+    PRERENDERED("prerendered");
+
+    public final String name;
+
+    private CacheStatus(String name) {
+      this.name = name;
+    }
   }
 
-  private static final Pattern pathTrimPattern = Pattern.compile("^\\/+|\\/+$|[?#].*$");
+  // Maximum number of months in a single batch request
+  private static final int batchMonthLimit = 60;
+  // Maximum number of months in a single admin request
+  private static final int adminMonthLimit = 1200;
 
   @Override
   public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-    if (msg instanceof FullHttpRequest) {
+    if (msg instanceof HttpRequest) {
+
+      // Request bodies are never used, only the head is kept (invalid requests may come with their content attached)
+      var request = (HttpRequest)msg;
+      ReferenceCountUtil.release(msg);
+
+      // Nothing can be sent after an event stream, so requests following one are ignored
+      if (streamTenant != null) return;
+      pendingRequests.put(request, new PendingRequest(requestSequence++, System.nanoTime()));
+
+      if (request.decoderResult().isFailure()) {
+        new HttpResponseWriter(request)
+          .setStatus(400)
+          .setContent("Malformed HTTP request")
+          .writeResponse(ctx)
+          .addListener(ChannelFutureListener.CLOSE);
+        return;
+      }
 
-      var request = (FullHttpRequest)msg;
       var method = request.method();
-      var path = request.uri();
-      request.release();
+      var query = new QueryStringDecoder(request.uri());
+      var path = pathTrimPattern.matcher(query.path()).replaceAll("");
+
+      // Requests for a tenant other than the default one start with its name
+      var separator = path.indexOf('/');
+      var named = tenants.get(separator >= 0 ? path.substring(0, separator) : path);
+      var tenant = named != null ? named : defaultTenant;
+      if (named != null) path = separator >= 0 ? path.substring(separator + 1) : "";
+
+      if (path.equals(adminInvalidatePath) || path.equals(adminRefreshPath)) {
+        handleAdmin(ctx, request, tenant, method, path, query);
+        return;
+      }
 
       if (method != HttpMethod.GET) {
         new HttpResponseWriter(request)
@@ -181,10 +374,30 @@ public final class ServerChannelHandler extends ChannelInboundHandlerAdapter {
         return;
       }
 
+      if (path.equals(eventsPath)) {
+        handleEvents(ctx, request, tenant, query);
+        return;
+      }
+
+      if (path.equals(batchPath)) {
+        handleBatch(ctx, request, tenant, query);
+        return;
+      }
+
+      if (path.equals(readyPath)) {
+        // The server as a whole is ready once every tenant is
+        var ready = named != null ? tenant.cacheWarmer.isReady() : isReady();
+        new HttpResponseWriter(request)
+          .setStatus(ready ? 200 : 503)
+          .setContent(ready ? "Ready" : "Warming up")
+          .setHeader(HttpHeaderKeys.Cache_Control, "no-store")
+          .writeResponse(ctx);
+        return;
+      }
+
       Month month;
       try {
-        var expression = pathTrimPattern.matcher(path).replaceAll("");
-        month = Month.parse(expression);
+        month = parseMonth(tenant, path);
       } catch (InvalidMonthException error) {
         new HttpResponseWriter(request)
           .setStatus(400)
@@ -193,43 +406,694 @@ public final class ServerChannelHandler extends ChannelInboundHandlerAdapter {
         return;
       }
 
-      if (
-        (config.yearMin >= 0 && config.yearMax >= 0)
-        && (month.year < config.yearMin || month.year > config.yearMax)
-      ) {
+      // The peer header skips forwarding and admission control, so it is ignored unless a peer sent it
+      var fromPeer =
+        request.headers().contains(ClusterRing.peerHeader) &&
+        tenant.calendarJsonProvider.isPeer(getClientAddress(ctx));
+      var format =
+        fromPeer
+          ? BodyFormat.JSON
+          : BodyFormat.negotiate(request.headers().get(HttpHeaderKeys.Accept));
+
+      EventProjection projection;
+      try {
+        projection = fromPeer ? EventProjection.all : parseProjection(query);
+      } catch (InvalidProjectionException error) {
         new HttpResponseWriter(request)
           .setStatus(400)
-          .setContent("Year out of range")
+          .setContent(error.getMessage())
           .writeResponse(ctx);
         return;
       }
 
-      var promise = calendarJsonProvider.request(month);
-      if (promise.isDone() && !promise.isCompletedExceptionally()) {
-        new HttpResponseWriter(request)
-          .setContent(promise.get())
-          .setContentType(HttpContentTypes.application_json)
-          .writeResponse(ctx);
-      } else {
-        promise.handleAsync((body, error) -> {
-          if (!promise.isCompletedExceptionally()) {
-            new HttpResponseWriter(request)
-              .setContent(body)
-              .setContentType(HttpContentTypes.application_json)
-              .writeResponse(ctx);
-          } else {
+      var trace = Trace.create(month.expression, configWatcher.get().serverTiming);
+
+      if (format == BodyFormat.JSON && projection.isAll()) {
+        // Months that have been pre-rendered are sent straight from the disk, months that haven't are looked up in memory only
+        // Opening a file blocks, so the files that are there are opened off the event loop
+        var gzip = acceptsGzip(request.headers().get(HttpHeaderKeys.Accept_Encoding)) && tenant.isPrerendered(month, true);
+        if (gzip || tenant.isPrerendered(month, false)) {
+          CompletableFuture.runAsync(() -> {
+            if (!writePrerendered(ctx, request, tenant, month, gzip, trace))
+              handleMonth(ctx, request, tenant, month, fromPeer, format, projection, trace);
+          }, executor).exceptionally(error -> {
+            log.error("Exception occurred while handling request", error);
             new HttpResponseWriter(request)
               .setStatus(500)
               .setContent(error)
               .writeResponse(ctx);
-          }
-          return null;
-        }, executor);
+            return null;
+          });
+          return;
+        }
       }
 
+      handleMonth(ctx, request, tenant, month, fromPeer, format, projection, trace);
+
+    } else if (msg instanceof HttpContent) {
+      ReferenceCountUtil.release(msg);
     } else super.channelRead(ctx, msg);
   }
 
+  // Respond with a month's calendar data from the cache, waiting for it to be generated if needed (can be called from any thread)
+  private void handleMonth(
+    ChannelHandlerContext ctx,
+    HttpRequest request,
+    Tenant tenant,
+    Month month,
+    boolean fromPeer,
+    BodyFormat format,
+    EventProjection projection,
+    Trace trace
+  ) {
+    var calendarJsonProvider = tenant.calendarJsonProvider;
+    var promise = calendarJsonProvider.request(month, fromPeer, PriorityExecutor.Priority.INTERACTIVE, admission(ctx, fromPeer));
+    if (promise.isDone() && !promise.isCompletedExceptionally()) {
+      writeBody(ctx, request, tenant, promise.join(), format, projection, CacheStatus.HIT, trace);
+    } else if (isAdmissionDenied(promise)) {
+      writeTooManyRequests(ctx, request);
+    } else {
+      var wait = trace.begin("wait");
+
+      // Give up on the month if the client disconnects, or once the deadline has passed
+      // Whoever cancels "promise" first is responsible for the response
+      var closeFuture = ctx.channel().closeFuture();
+      ChannelFutureListener abandon = future -> promise.cancel(false);
+      closeFuture.addListener(abandon);
+
+      var deadline = tenant.getConfig().responseDeadline;
+      var deadlineFuture =
+        deadline > 0
+          ? ctx.executor().schedule(() -> {
+              // Let the update finish in the background first, so that the month is cached for the next request
+              calendarJsonProvider
+                .request(month, fromPeer, PriorityExecutor.Priority.BACKGROUND)
+                .thenAccept(MonthBody::release);
+              if (promise.cancel(false)) {
+                wait.end();
+                writeStale(ctx, request, tenant, month, format, projection, trace);
+              }
+            }, deadline, TimeUnit.MILLISECONDS)
+          : null;
+
+      promise.handleAsync((body, error) -> {
+        closeFuture.removeListener(abandon);
+        if (deadlineFuture != null) deadlineFuture.cancel(false);
+        if (promise.isCancelled()) return null;
+        wait.end();
+
+        if (!promise.isCompletedExceptionally()) {
+          writeBody(ctx, request, tenant, body, format, projection, CacheStatus.MISS, trace);
+        } else {
+          new HttpResponseWriter(request)
+            .setStatus(500)
+            .setContent(error)
+            .writeResponse(ctx);
+        }
+        return null;
+      }, ctx.executor());
+    }
+  }
+
+  private void writeBody(
+    ChannelHandlerContext ctx,
+    HttpMessage request,
+    Tenant tenant,
+    MonthBody body,
+    BodyFormat format,
+    EventProjection projection,
+    CacheStatus cache,
+    Trace trace
+  ) {
+    var encode = trace.begin("encode");
+    tenant.calendarJsonProvider.encode(body, format, projection).whenComplete((content, error) -> {
+      encode.end();
+      if (error != null) {
+        body.release();
+        new HttpResponseWriter(request)
+          .setStatus(500)
+          .setContent(error)
+          .writeResponse(ctx);
+        return;
+      }
+
+      var writer = new HttpResponseWriter(request)
+        .setContent(content)
+        .setContentType(format.contentType)
+        .setHeader(HttpHeaderKeys.Vary, HttpHeaderKeys.Accept)
+        .setCache(cache, trace, cache == CacheStatus.MISS ? body.trace : null);
+      if (cache == CacheStatus.STALE)
+        writer.setHeader(HttpHeaderKeys.Warning, "110 - \"Response is Stale\"");
+      writer
+        .writeResponse(ctx)
+        // Keep the body (and its budget) alive until the response has been written
+        .addListener(future -> body.release());
+    });
+  }
+
+  // Send the pre-rendered file of a month (its gzip compressed copy if "gzip"), returns "false" if it is gone
+  private boolean writePrerendered(ChannelHandlerContext ctx, HttpMessage request, Tenant tenant, Month month, boolean gzip, Trace trace) {
+    var directory = tenant.getPrerenderDirectory();
+    if (directory == null) return false;
+
+    var file = openFile(Prerenderer.getPath(directory, month, gzip));
+    if (file == null) return false;
+
+    var writer = new HttpResponseWriter(request)
+      .setContentType(BodyFormat.JSON.contentType)
+      .setHeader(HttpHeaderKeys.Vary, HttpHeaderKeys.Accept + ", " + HttpHeaderKeys.Accept_Encoding)
+      .setCache(CacheStatus.PRERENDERED, trace, null);
+    if (gzip)
+      writer.setHeader(HttpHeaderKeys.Content_Encoding, "gzip");
+
+    try {
+      writer.writeFileResponse(ctx, file);
+      return true;
+    } catch (IOException error) {
+      log.warn("Failed to send the pre-rendered file of {}", month, error);
+      try { file.close(); } catch (IOException closeError) { }
+      return false;
+    }
+  }
+
+  private static RandomAccessFile openFile(Path path) {
+    try {
+      return new RandomAccessFile(path.toFile(), "r");
+    } catch (FileNotFoundException error) {
+      return null;
+    }
+  }
+
+  private static boolean acceptsGzip(String acceptEncoding) {
+    if (acceptEncoding == null) return false;
+
+    // An explicit "gzip" entry takes precedence over the "*" wildcard, wherever it appears (ex: "gzip;q=0, *" refuses gzip)
+    Double gzipQuality = null;
+    Double wildcardQuality = null;
+    for (var coding : listSplitPattern.split(acceptEncoding)) {
+      var parameters = parameterSplitPattern.split(coding);
+      var name = parameters[0].trim();
+      var gzip = name.equalsIgnoreCase("gzip");
+      if (!gzip && !name.equals("*")) continue;
+
+      double quality = 1;
+      for (int i = 1; i < parameters.length; i++) {
+        var parameter = parameters[i].trim();
+        if (parameter.startsWith("q=")) {
+          try { quality = Double.parseDouble(parameter.substring(2)); }
+          catch (NumberFormatException error) { quality = 0; }
+        }
+      }
+      if (gzip) gzipQuality = quality;
+      else wildcardQuality = quality;
+    }
+
+    var quality = gzipQuality != null ? gzipQuality : wildcardQuality;
+    return quality != null && quality > 0;
+  }
+
+
+  // Build a "Server-Timing" header with the cache status, the stages of the request (and of the update it waited for) and the total time
+  private static String serverTiming(CacheStatus cache, Trace trace, Trace updateTrace) {
+    var header = new StringBuilder("cache;desc=").append(cache.name);
+    trace.appendServerTiming(header);
+    if (updateTrace != null) updateTrace.appendServerTiming(header);
+    return Trace.appendServerTiming(header, "total", trace.getElapsed()).toString();
+  }
+
+  private void writeStale(
+    ChannelHandlerContext ctx,
+    HttpMessage request,
+    Tenant tenant,
+    Month month,
+    BodyFormat format,
+    EventProjection projection,
+    Trace trace
+  ) {
+    var body = tenant.calendarJsonProvider.requestStale(month);
+    if (body != null) {
+      log.warn("Deadline passed for {}, responding with stale data", month);
+      writeBody(ctx, request, tenant, body, format, projection, CacheStatus.STALE, trace);
+    } else {
+      log.warn("Deadline passed for {}, giving up", month);
+      new HttpResponseWriter(request)
+        .setStatus(504)
+        .setContent("Timed out waiting for the calendar source")
+        .writeResponse(ctx);
+    }
+  }
+
+  // Write the messages of a response once the responses to every earlier request on this channel have been written
+  // Can be called from any thread, the response is written (and flushed, see FlushConsolidationHandler) on the channel's event loop
+  private ChannelFuture send(ChannelHandlerContext ctx, HttpMessage request, CacheStatus cache, Object... messages) {
+    var promise = ctx.newPromise();
+    if (ctx.executor().inEventLoop()) enqueue(ctx, request, cache, messages, promise);
+    else ctx.executor().execute(() -> enqueue(ctx, request, cache, messages, promise));
+    return promise;
+  }
+
+  private void enqueue(ChannelHandlerContext ctx, HttpMessage request, CacheStatus cache, Object[] messages, ChannelPromise promise) {
+    // Responses that don't belong to a request (or to one that has already been answered) skip the queue
+    var pending = request != null ? pendingRequests.remove(request) : null;
+    if (pending == null) {
+      write(ctx, messages, promise);
+      ctx.flush();
+      return;
+    }
+    logAccess(ctx, request, cache, pending, messages[0], promise);
+
+    var sequence = pending.sequence;
+
+    queuedResponses.put(sequence, () -> write(ctx, messages, promise));
+    if (sequence != responseSequence) return;
+
+    // Write every response that was only waiting for this one, flushing them together
+    Runnable next;
+    while ((next = queuedResponses.remove(responseSequence)) != null) {
+      next.run();
+      responseSequence++;
+    }
+    ctx.flush();
+  }
+
+  // Add the response to the access log (if it is sampled) once it has been written
+  private void logAccess(
+    ChannelHandlerContext ctx,
+    HttpMessage request,
+    CacheStatus cache,
+    PendingRequest pending,
+    Object message,
+    ChannelPromise promise
+  ) {
+    if (accessLog == null || !(request instanceof HttpRequest) || !(message instanceof HttpResponse)) return;
+    if (!accessLog.isSampled(configWatcher.get().accessLogSampleRate)) return;
+
+    var httpRequest = (HttpRequest)request;
+    var response = (HttpResponse)message;
+    var client = getClientAddress(ctx);
+    promise.addListener(future -> accessLog.log(new AccessLog.Entry(
+      System.currentTimeMillis(),
+      client != null ? client.getHostAddress() : null,
+      httpRequest.method().name(),
+      httpRequest.uri(),
+      response.status().code(),
+      // Event streams have no length
+      HttpUtil.getContentLength(response, -1L),
+      System.nanoTime() - pending.received,
+      cache != null ? cache.name : null
+    )));
+  }
+
+  private static void write(ChannelHandlerContext ctx, Object[] messages, ChannelPromise promise) {
+    var last = messages.length - 1;
+    for (int i = 0; i < last; i++) ctx.write(messages[i]);
+    ctx.write(messages[last], promise);
+  }
+
+  // Requests from peers were already admitted by the node that forwarded them
+  private BooleanSupplier admission(ChannelHandlerContext ctx, boolean fromPeer) {
+    if (fromPeer) return () -> true;
+    return () -> admissionController.admit(getClientAddress(ctx));
+  }
+
+  private static InetAddress getClientAddress(ChannelHandlerContext ctx) {
+    var address = ctx.channel().remoteAddress();
+    return address instanceof InetSocketAddress ? ((InetSocketAddress)address).getAddress() : null;
+  }
+
+  private static boolean isAdmissionDenied(CompletableFuture<?> promise) {
+    if (!promise.isCompletedExceptionally() || promise.isCancelled()) return false;
+    return promise.handle((value, error) -> {
+      var cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+      return cause instanceof AdmissionDeniedException;
+    }).join();
+  }
+
+  private void writeTooManyRequests(ChannelHandlerContext ctx, HttpMessage request) {
+    new HttpResponseWriter(request)
+      .setStatus(429)
+      .setContent("Too many requests for uncached months, try again later")
+      .setHeader(HttpHeaderKeys.Retry_After, 1)
+      .setHeader(HttpHeaderKeys.Cache_Control, "no-store")
+      .writeResponse(ctx);
+  }
+
+  private Month parseMonth(Tenant tenant, String expression) throws InvalidMonthException {
+    var config = tenant.getConfig();
+    var month = Month.parse(expression);
+    if (!config.isYearAllowed(month.year)) {
+      throw new InvalidMonthException("Year out of range");
+    }
+    return month;
+  }
+
+  private EventProjection parseProjection(QueryStringDecoder query) throws InvalidProjectionException {
+    var fields = query.parameters().get("fields");
+    return fields != null ? EventProjection.parse(String.join(",", fields)) : EventProjection.all;
+  }
+
+  private List<Month> parseMonthList(Tenant tenant, List<String> expressions) throws InvalidMonthException {
+    var months = new ArrayList<Month>();
+    if (expressions != null) {
+      for (var expressionList : expressions) {
+        for (var expression : listSplitPattern.split(expressionList)) {
+          if (expression.isEmpty()) continue;
+          var month = parseMonth(tenant, expression);
+          if (!months.contains(month)) months.add(month);
+        }
+      }
+    }
+    if (months.isEmpty())
+      throw new InvalidMonthException("No months specified");
+    return months;
+  }
+
+  private void handleEvents(ChannelHandlerContext ctx, HttpRequest request, Tenant tenant, QueryStringDecoder query) {
+    List<Month> months;
+    try {
+      months = parseMonthList(tenant, query.parameters().get("months"));
+      if (months.size() > batchMonthLimit)
+        throw new InvalidMonthException("Too many months");
+    } catch (InvalidMonthException error) {
+      new HttpResponseWriter(request)
+        .setStatus(400)
+        .setContent(error.getMessage())
+        .writeResponse(ctx);
+      return;
+    }
+
+    // Subscribing starts an update for every uncached month, so those count against the client's misses too (expired months don't)
+    var client = getClientAddress(ctx);
+    for (var month : months) {
+      if (!tenant.calendarJsonProvider.hasEntry(month) && !admissionController.admit(client)) {
+        writeTooManyRequests(ctx, request);
+        return;
+      }
+    }
+
+    // Updates may only be sent once the head has been written (after the responses to earlier requests)
+    streamTenant = tenant;
+    new HttpResponseWriter(request)
+      .setContentType(HttpContentTypes.text_event_stream)
+      .setHeader(HttpHeaderKeys.Cache_Control, "no-cache")
+      .writeStreamHead(ctx)
+      .addListener(future -> {
+        if (future.isSuccess()) tenant.eventStreamBroadcaster.subscribe(ctx.channel(), months);
+      });
+  }
+
+  private void handleBatch(ChannelHandlerContext ctx, HttpRequest request, Tenant tenant, QueryStringDecoder query) {
+    List<Month> months;
+    EventProjection projection;
+    try {
+      months = parseMonthList(tenant, query.parameters().get("months"));
+      if (months.size() > batchMonthLimit)
+        throw new InvalidMonthException("Too many months");
+      projection = parseProjection(query);
+    } catch (InvalidMonthException | InvalidProjectionException error) {
+      new HttpResponseWriter(request)
+        .setStatus(400)
+        .setContent(error.getMessage())
+        .writeResponse(ctx);
+      return;
+    }
+
+    // Resolve every month concurrently
+    var calendarJsonProvider = tenant.calendarJsonProvider;
+    var trace = Trace.create(batchPath, configWatcher.get().serverTiming);
+    var promises = new ArrayList<CompletableFuture<MonthBody>>(months.size());
+    var admission = admission(ctx, false);
+    for (var month : months) promises.add(calendarJsonProvider.request(month, false, PriorityExecutor.Priority.INTERACTIVE, admission));
+    var all = CompletableFuture.allOf(promises.toArray(new CompletableFuture<?>[0]));
+    var hit = all.isDone();
+    var wait = trace.begin("wait");
+
+    // Give up on the months if the client disconnects, months that are still pending once the deadline has passed are served stale
+    var closeFuture = ctx.channel().closeFuture();
+    ChannelFutureListener abandon = future -> { for (var promise : promises) promise.cancel(false); };
+    closeFuture.addListener(abandon);
+
+    var deadline = tenant.getConfig().responseDeadline;
+    var deadlineFuture =
+      deadline > 0 && !all.isDone()
+        ? ctx.executor().schedule(() -> {
+            for (int i = 0; i < months.size(); i++) {
+              var promise = promises.get(i);
+              if (promise.isDone()) continue;
+              // Let the update finish in the background first, so that the month is cached for the next request
+              calendarJsonProvider
+                .request(months.get(i), false, PriorityExecutor.Priority.BACKGROUND)
+                .thenAccept(MonthBody::release);
+              promise.cancel(false);
+            }
+          }, deadline, TimeUnit.MILLISECONDS)
+        : null;
+
+    all.handleAsync((v, allError) -> {
+      closeFuture.removeListener(abandon);
+      if (deadlineFuture != null) deadlineFuture.cancel(false);
+      wait.end();
+
+      var bodies = new ArrayList<MonthBody>(months.size());
+      var stale = false;
+      var denied = false;
+      Throwable error = null;
+      for (int i = 0; i < months.size(); i++) {
+        var promise = promises.get(i);
+        MonthBody body = null;
+        if (promise.isCancelled()) {
+          body = calendarJsonProvider.requestStale(months.get(i));
+          stale = true;
+        } else if (!promise.isCompletedExceptionally()) {
+          body = promise.join();
+        } else if (isAdmissionDenied(promise)) {
+          denied = true;
+        } else if (error == null) {
+          error = promise.handle((b, cause) -> cause).join();
+        }
+        bodies.add(body);
+      }
+
+      if (!ctx.channel().isActive() || bodies.contains(null)) {
+        for (var body : bodies) if (body != null) body.release();
+        if (!ctx.channel().isActive()) return null;
+
+        if (denied) {
+          writeTooManyRequests(ctx, request);
+        } else if (error != null) {
+          new HttpResponseWriter(request)
+            .setStatus(500)
+            .setContent(error)
+            .writeResponse(ctx);
+        } else {
+          log.warn("Deadline passed for a batch of {} months, giving up", months.size());
+          new HttpResponseWriter(request)
+            .setStatus(504)
+            .setContent("Timed out waiting for the calendar source")
+            .writeResponse(ctx);
+        }
+        return null;
+      }
+
+      if (stale) log.warn("Deadline passed for a batch of {} months, responding with stale data", months.size());
+      writeBatch(ctx, request, tenant, months, bodies, projection, stale ? CacheStatus.STALE : hit ? CacheStatus.HIT : CacheStatus.MISS, trace);
+      return null;
+    }, ctx.executor());
+  }
+
+  private void writeBatch(
+    ChannelHandlerContext ctx,
+    HttpMessage request,
+    Tenant tenant,
+    List<Month> months,
+    List<MonthBody> bodies,
+    EventProjection projection,
+    CacheStatus cache,
+    Trace trace
+  ) {
+    var encode = trace.begin("encode");
+    var encodings = new ArrayList<CompletableFuture<ByteBuf>>(bodies.size());
+    for (var body : bodies) encodings.add(tenant.calendarJsonProvider.encode(body, BodyFormat.JSON, projection));
+
+    CompletableFuture.allOf(encodings.toArray(new CompletableFuture<?>[0])).whenComplete((v, error) -> {
+      encode.end();
+      if (error != null) {
+        for (var encoding : encodings) encoding.thenAccept(ByteBuf::release);
+        for (var body : bodies) body.release();
+        new HttpResponseWriter(request)
+          .setStatus(500)
+          .setContent(error)
+          .writeResponse(ctx);
+        return;
+      }
+
+      // Wrap the encoded bodies in a JSON object keyed by month, without copying them
+      var content = ctx.alloc().compositeBuffer(months.size() * 2 + 1);
+      for (int i = 0; i < months.size(); i++) {
+        var key = (i == 0 ? "{\"" : ",\"") + months.get(i).expression + "\":";
+        content.addComponent(true, Unpooled.copiedBuffer(key, StandardCharsets.US_ASCII));
+        content.addComponent(true, encodings.get(i).join());
+      }
+      content.addComponent(true, Unpooled.wrappedBuffer(batchEnd));
+
+      var writer = new HttpResponseWriter(request)
+        .setContent(content)
+        .setContentType(BodyFormat.JSON.contentType)
+        .setCache(cache, trace, null);
+      if (cache == CacheStatus.STALE)
+        writer.setHeader(HttpHeaderKeys.Warning, "110 - \"Response is Stale\"");
+      writer
+        .writeResponse(ctx)
+        // Keep the bodies (and their budget) alive until the response has been written
+        .addListener(future -> { for (var body : bodies) body.release(); });
+    });
+  }
+
+  private void handleAdmin(
+    ChannelHandlerContext ctx,
+    HttpRequest request,
+    Tenant tenant,
+    HttpMethod method,
+    String path,
+    QueryStringDecoder query
+  ) {
+    var config = tenant.getConfig();
+    if (config.adminToken == null) {
+      new HttpResponseWriter(request)
+        .setStatus(404)
+        .setContent("Admin API is disabled")
+        .writeResponse(ctx);
+      return;
+    }
+
+    if (method != HttpMethod.POST) {
+      new HttpResponseWriter(request)
+        .setStatus(405)
+        .setContent("Admin API only accepts POST requests")
+        .setHeader(HttpHeaderKeys.Allow, "POST")
+        .writeResponse(ctx);
+      return;
+    }
+
+    if (!isAuthorized(config, request.headers().get(HttpHeaderKeys.Authorization))) {
+      new HttpResponseWriter(request)
+        .setStatus(401)
+        .setContent("Invalid admin token")
+        .setHeader(HttpHeaderKeys.WWW_Authenticate, "Bearer")
+        .writeResponse(ctx);
+      return;
+    }
+
+    List<Month> months;
+    try {
+      months = parseMonthSelection(tenant, query);
+    } catch (InvalidMonthException error) {
+      new HttpResponseWriter(request)
+        .setStatus(400)
+        .setContent(error.getMessage())
+        .writeResponse(ctx);
+      return;
+    }
+
+    if (path.equals(adminInvalidatePath)) {
+      for (var month : months) tenant.calendarJsonProvider.invalidate(month);
+      new HttpResponseWriter(request)
+        .setContent(String.format("Invalidated %d months", months.size()))
+        .writeResponse(ctx);
+    } else {
+      log.info("Refreshing {} months", months.size());
+      tenant.calendarJsonProvider.updateAll(months, config.warmupConcurrency).thenAccept(succeeded -> {
+        new HttpResponseWriter(request)
+          .setStatus(succeeded == months.size() ? 200 : 502)
+          .setContent(String.format("Refreshed %d of %d months", succeeded, months.size()))
+          .writeResponse(ctx);
+      });
+    }
+  }
+
+  private boolean isAuthorized(Config config, String authorization) {
+    var prefix = "Bearer ";
+    if (authorization == null || !authorization.regionMatches(true, 0, prefix, 0, prefix.length())) return false;
+
+    // Constant time comparison, so the token can't be guessed one character at a time
+    return MessageDigest.isEqual(
+      authorization.substring(prefix.length()).trim().getBytes(StandardCharsets.UTF_8),
+      config.adminToken.getBytes(StandardCharsets.UTF_8)
+    );
+  }
+
+  private List<Month> parseMonthSelection(Tenant tenant, QueryStringDecoder query) throws InvalidMonthException {
+    var parameters = query.parameters();
+    if (parameters.containsKey("months")) {
+      var months = parseMonthList(tenant, parameters.get("months"));
+      if (months.size() > adminMonthLimit)
+        throw new InvalidMonthException("Too many months");
+      return months;
+    }
+
+    var from = parameters.get("from");
+    var to = parameters.get("to");
+    if (from == null || to == null)
+      throw new InvalidMonthException("No months specified");
+
+    var start = parseMonth(tenant, from.get(0));
+    var end = parseMonth(tenant, to.get(0));
+    var count = (end.year * 12 + end.month) - (start.year * 12 + start.month) + 1;
+    if (count <= 0)
+      throw new InvalidMonthException("Range end is before its start");
+    if (count > adminMonthLimit)
+      throw new InvalidMonthException("Too many months");
+
+    var months = new ArrayList<Month>(count);
+    for (int i = 0; i < count; i++) months.add(start.plus(i));
+    return months;
+  }
+
+  private boolean isReady() {
+    if (!defaultTenant.cacheWarmer.isReady()) return false;
+    for (var tenant : tenants.values()) {
+      if (!tenant.cacheWarmer.isReady()) return false;
+    }
+    return true;
+  }
+
+  @Override
+  public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+    // Stop reading requests while the client isn't reading its responses, so they can't pile up in the outbound buffer
+    var channel = ctx.channel();
+    channel.config().setAutoRead(channel.isWritable());
+    if (streamTenant != null) streamTenant.eventStreamBroadcaster.resume(channel);
+    super.channelWritabilityChanged(ctx);
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    // Responses still waiting for earlier ones will never be sent, writing them fails them (releasing the bodies they hold)
+    for (var response : queuedResponses.values()) response.run();
+    queuedResponses.clear();
+    pendingRequests.clear();
+    super.channelInactive(ctx);
+  }
+
+  @Override
+  public void userEventTriggered(ChannelHandlerContext ctx, Object event) throws Exception {
+    if (!(event instanceof IdleStateEvent)) {
+      super.userEventTriggered(ctx, event);
+      return;
+    }
+
+    // Connections waiting for a response aren't idle
+    if (!pendingRequests.isEmpty() || !queuedResponses.isEmpty()) return;
+
+    if (streamTenant != null) {
+      // Event streams are idle between updates, a comment keeps proxies from closing them
+      if (ctx.channel().isWritable())
+        ctx.writeAndFlush(new DefaultHttpContent(Unpooled.wrappedBuffer(heartbeatFrame)));
+    } else {
+      ctx.close();
+    }
+  }
+
   @Override
   public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
     ctx.flush();
@@ -237,6 +1101,13 @@ public final class ServerChannelHandler extends ChannelInboundHandlerAdapter {
 
   @Override
   public void exceptionCaught(ChannelHandlerContext ctx, Throwable error) throws Exception {
+    // Clients resetting their connections is business as usual with enough of them, there is nobody left to respond to
+    if (error instanceof IOException) {
+      log.debug("Connection to {} failed", ctx.channel().remoteAddress(), error);
+      ctx.close();
+      return;
+    }
+
     log.error("Exception occurred while handling request", error);
     new HttpResponseWriter()
       .setStatus(500)
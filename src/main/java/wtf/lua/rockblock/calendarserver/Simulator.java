@@ -0,0 +1,455 @@
+package wtf.lua.rockblock.calendarserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Pattern;
+
+/**
+ * Simulator replays a synthetic request trace against a {@link CalendarJsonProvider} in virtual time, so that the effect of cache
+ * settings (TTLs, byte budget, download concurrency) on the calendar source can be evaluated in seconds instead of hours.
+ * Requests pick months with Zipfian popularity (the start month being the most popular) and arrive randomly, with additional
+ * bursts every "cacheTTL" milliseconds. The calendar source is simulated as well, answering after a random latency with a
+ * feed from {@link TrainingUpstream} that changes with a given probability on every download.
+ * Everything runs on the calling thread in a deterministic order, so the same config + workload always produces the same report.
+ *
+ * <p>
+ * Copyright (C) 2020 Lua MacDougall
+ * <br/><br/>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <br/><br/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * <br/><br/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see &lt;https://www.gnu.org/licenses/&gt;.
+ * </p>
+ *
+ * @author Lua MacDougall &lt;luawhat@gmail.com&gt;
+ */
+public final class Simulator {
+  /**
+   * Workload describes the request trace and the simulated calendar source.
+   */
+  public static final class Workload {
+    /** Month the trace starts in (half way through it), fixed instead of the current month so that reports can be compared across days. */
+    public final Month start;
+    /** Length of the trace in milliseconds. */
+    public final long duration;
+    /** Average number of requests per second, outside of bursts. */
+    public final double requestRate;
+    /** Number of distinct months that are requested, around "start". */
+    public final int months;
+    /** Exponent of the Zipf distribution of month popularity, higher values focus more requests on the most popular months. */
+    public final double zipfExponent;
+    /** Number of additional requests at every multiple of "cacheTTL", "0" for no bursts. */
+    public final int burstSize;
+    /** Time in milliseconds that the requests of a burst are spread over. */
+    public final long burstWindow;
+    /** Minimum time in milliseconds that the calendar source takes to respond. */
+    public final long upstreamLatency;
+    /** Maximum additional (random) time in milliseconds that the calendar source takes to respond. */
+    public final long upstreamJitter;
+    /** Probability that a month's feed has changed since it was last downloaded. */
+    public final double changeProbability;
+    /** Seed of the random number generators. */
+    public final long seed;
+
+    /**
+     * Create a new Workload instance.
+     * @param start             {@link Workload#start}
+     * @param duration          {@link Workload#duration}
+     * @param requestRate       {@link Workload#requestRate}
+     * @param months            {@link Workload#months}
+     * @param zipfExponent      {@link Workload#zipfExponent}
+     * @param burstSize         {@link Workload#burstSize}
+     * @param burstWindow       {@link Workload#burstWindow}
+     * @param upstreamLatency   {@link Workload#upstreamLatency}
+     * @param upstreamJitter    {@link Workload#upstreamJitter}
+     * @param changeProbability {@link Workload#changeProbability}
+     * @param seed              {@link Workload#seed}
+     */
+    public Workload(
+      Month start,
+      long duration,
+      double requestRate,
+      int months,
+      double zipfExponent,
+      int burstSize,
+      long burstWindow,
+      long upstreamLatency,
+      long upstreamJitter,
+      double changeProbability,
+      long seed
+    ) {
+      this.start = start;
+      this.duration = duration;
+      this.requestRate = requestRate;
+      this.months = months;
+      this.zipfExponent = zipfExponent;
+      this.burstSize = burstSize;
+      this.burstWindow = burstWindow;
+      this.upstreamLatency = upstreamLatency;
+      this.upstreamJitter = upstreamJitter;
+      this.changeProbability = changeProbability;
+      this.seed = seed;
+    }
+  }
+
+  /**
+   * Report holds the results of a simulation.
+   */
+  public static final class Report {
+    /** Number of requests made. */
+    public final int requests;
+    /** Requests answered straight away from a valid cache entry. */
+    public final int hits;
+    /** Requests answered straight away with an expired body while it was being refreshed. */
+    public final int staleHits;
+    /** Requests that waited for an update that was already in progress. */
+    public final int coalesced;
+    /** Requests that started an update and waited for it. */
+    public final int misses;
+    /** Requests that failed. */
+    public final int failed;
+    /** Number of downloads from the calendar source. */
+    public final int upstreamCalls;
+    /** Largest number of downloads from the calendar source in progress at once. */
+    public final int peakUpstreamCalls;
+
+    // Time in milliseconds that every coalesced request + miss waited, sorted
+    private final long[] waitTimes;
+
+    private Report(
+      int requests,
+      int hits,
+      int staleHits,
+      int coalesced,
+      int misses,
+      int failed,
+      int upstreamCalls,
+      int peakUpstreamCalls,
+      long[] waitTimes
+    ) {
+      this.requests = requests;
+      this.hits = hits;
+      this.staleHits = staleHits;
+      this.coalesced = coalesced;
+      this.misses = misses;
+      this.failed = failed;
+      this.upstreamCalls = upstreamCalls;
+      this.peakUpstreamCalls = peakUpstreamCalls;
+      this.waitTimes = waitTimes;
+    }
+
+    /**
+     * Get the share of waiting requests that joined an update already in progress instead of starting their own.
+     * @return Ratio between "0" and "1", "0" if no request had to wait.
+     */
+    public double getCoalescingRatio() {
+      return coalesced + misses > 0 ? (double)coalesced / (coalesced + misses) : 0;
+    }
+
+    /**
+     * Get a percentile of the time that requests waited for an update, requests answered straight away are not included.
+     * @param percentile Percentile between "0" and "1" (ex: "0.99" for the 99th percentile).
+     * @return Waiting time in milliseconds, "0" if no request had to wait.
+     */
+    public long getWaitTime(double percentile) {
+      if (waitTimes.length == 0) return 0;
+      var index = (int)Math.ceil(percentile * waitTimes.length) - 1;
+      return waitTimes[Math.max(Math.min(index, waitTimes.length - 1), 0)];
+    }
+  }
+
+  /**
+   * VirtualClock is a clock that only moves when the simulation advances it.
+   */
+  private static final class VirtualClock extends Clock {
+    // Shared with every copy of this clock in another zone
+    private final long[] time;
+    private final ZoneId zone;
+
+    public VirtualClock(long millis) {
+      this(new long[] { millis }, ZoneOffset.UTC);
+    }
+    private VirtualClock(long[] time, ZoneId zone) {
+      this.time = time;
+      this.zone = zone;
+    }
+
+    public void setMillis(long millis) {
+      time[0] = millis;
+    }
+
+    @Override
+    public long millis() {
+      return time[0];
+    }
+
+    @Override
+    public Instant instant() {
+      return Instant.ofEpochMilli(time[0]);
+    }
+
+    @Override
+    public ZoneId getZone() {
+      return zone;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+      return new VirtualClock(time, zone);
+    }
+  }
+
+  /**
+   * Scheduled is an action that runs once the virtual time reaches "time", in the order it was scheduled among equal times.
+   */
+  private static final class Scheduled implements Comparable<Scheduled> {
+    private final long time;
+    private final long sequence;
+    private final Runnable action;
+
+    public Scheduled(long time, long sequence, Runnable action) {
+      this.time = time;
+      this.sequence = sequence;
+      this.action = action;
+    }
+
+    @Override
+    public int compareTo(Scheduled scheduled) {
+      if (time != scheduled.time) return Long.compare(time, scheduled.time);
+      return Long.compare(sequence, scheduled.sequence);
+    }
+  }
+
+  /**
+   * SimulatedUpstream stands in for the calendar source, answering downloads after a random virtual latency.
+   */
+  private final class SimulatedUpstream extends Downloader {
+    public SimulatedUpstream() {
+      super(Simulator.this::execute, config.downloadConnectTimeout, false, false);
+    }
+
+    @Override
+    public CompletableFuture<InputStream> download(URI uri, long retrieveTimeout, Trace trace, String... headers) {
+      var matcher = monthPattern.matcher(uri.toString());
+      Month month = null;
+      while (matcher.find()) {
+        try { month = Month.parse(matcher.group()); }
+        catch (InvalidMonthException error) { /* Not a month, keep looking */ }
+      }
+      if (month == null)
+        return CompletableFuture.failedFuture(new IOException("The URL does not contain the requested month"));
+
+      // Every download may find a changed feed
+      var revision = revisions.getOrDefault(month, 0);
+      if (upstreamRandom.nextDouble() < workload.changeProbability) revision++;
+      revisions.put(month, revision);
+      var feed = TrainingUpstream.generateFeed(month, revision).getBytes(StandardCharsets.UTF_8);
+
+      upstreamCalls++;
+      upstreamInFlight++;
+      peakUpstreamCalls = Math.max(peakUpstreamCalls, upstreamInFlight);
+
+      var promise = new CompletableFuture<InputStream>();
+      var latency = workload.upstreamLatency + (long)(upstreamRandom.nextDouble() * workload.upstreamJitter);
+      if (latency > retrieveTimeout) {
+        schedule(clock.millis() + retrieveTimeout, () -> {
+          upstreamInFlight--;
+          promise.completeExceptionally(new HttpTimeoutException("request timed out"));
+        });
+      } else {
+        schedule(clock.millis() + latency, () -> {
+          upstreamInFlight--;
+          promise.complete(new ByteArrayInputStream(feed));
+        });
+      }
+      return promise;
+    }
+  }
+
+  private static final Pattern monthPattern = Pattern.compile("\\d\\d\\d\\d-\\d\\d");
+
+  private final Config config;
+  private final Workload workload;
+
+  private final VirtualClock clock;
+  // Actions waiting for their time
+  private final PriorityQueue<Scheduled> timeline;
+  private long sequence;
+  // Tasks submitted to the executor, run at the current time
+  private final Queue<Runnable> tasks;
+
+  private final Random traceRandom;
+  private final Random upstreamRandom;
+  // Month -> current revision of its feed
+  private final Map<Month, Integer> revisions;
+
+  private final CalendarJsonProvider calendarJsonProvider;
+
+  private int requests, hits, staleHits, coalesced, misses, failed;
+  private int upstreamCalls, upstreamInFlight, peakUpstreamCalls;
+  private long[] waitTimes;
+  private int waitCount;
+
+  /**
+   * Create a new Simulator instance.
+   * @param config Configuration of the simulated cache.
+   * @param workload Request trace + calendar source to simulate.
+   */
+  public Simulator(Config config, Workload workload) {
+    this.config = config;
+    this.workload = workload;
+
+    // Start half way through the start month, so that the months around it are in the future and in the past
+    var start = workload.start;
+    clock = new VirtualClock(start.getStart() + (start.getEnd() - start.getStart()) / 2);
+    timeline = new PriorityQueue<>();
+    tasks = new ArrayDeque<>();
+
+    traceRandom = new Random(workload.seed);
+    upstreamRandom = new Random(workload.seed + 1);
+    revisions = new HashMap<>();
+
+    calendarJsonProvider = new CalendarJsonProvider(this::execute, config, new SimulatedUpstream(), null, clock);
+
+    waitTimes = new long[1024];
+  }
+
+  /**
+   * Run the simulation until every request has been answered, this can only be done once.
+   * @return Report of the simulation.
+   */
+  public Report run() {
+    var start = clock.millis();
+    var end = start + workload.duration;
+    var months = rankMonths();
+    var popularity = zipf(months.length);
+
+    // Requests arrive at random (as a Poisson process) ...
+    if (workload.requestRate > 0) {
+      var time = (double)start;
+      while (true) {
+        time += -Math.log(1 - traceRandom.nextDouble()) / workload.requestRate * 1000;
+        if (time >= end) break;
+        var month = months[sample(popularity)];
+        schedule((long)time, () -> issue(month));
+      }
+    }
+    // ... and in bursts whenever the months cached at the start expire
+    if (workload.burstSize > 0 && config.cacheTTL > 0) {
+      for (var time = start + config.cacheTTL; time < end; time += config.cacheTTL) {
+        for (int i = 0; i < workload.burstSize; i++) {
+          var month = months[sample(popularity)];
+          schedule(time + (long)(traceRandom.nextDouble() * workload.burstWindow), () -> issue(month));
+        }
+      }
+    }
+
+    Scheduled scheduled;
+    while ((scheduled = timeline.poll()) != null) {
+      clock.setMillis(scheduled.time);
+      scheduled.action.run();
+      runTasks();
+    }
+
+    var waits = Arrays.copyOf(waitTimes, waitCount);
+    Arrays.sort(waits);
+    return new Report(requests, hits, staleHits, coalesced, misses, failed, upstreamCalls, peakUpstreamCalls, waits);
+  }
+
+  private void issue(Month month) {
+    var issued = clock.millis();
+    var cached = calendarJsonProvider.isCached(month);
+    var promise = calendarJsonProvider.request(month);
+    requests++;
+
+    // Requests that can't be answered straight away wait for an update
+    var waiting = !promise.isDone();
+    if (!waiting) {
+      if (cached) hits++;
+      else staleHits++;
+    } else {
+      if (cached) coalesced++;
+      else misses++;
+    }
+
+    promise.whenComplete((body, error) -> {
+      if (error != null) failed++;
+      else body.release();
+      if (waiting) addWaitTime(clock.millis() - issued);
+    });
+  }
+
+  private void addWaitTime(long waitTime) {
+    if (waitCount == waitTimes.length) waitTimes = Arrays.copyOf(waitTimes, waitCount * 2);
+    waitTimes[waitCount++] = waitTime;
+  }
+
+  private void execute(Runnable task) {
+    tasks.add(task);
+  }
+
+  private void runTasks() {
+    Runnable task;
+    while ((task = tasks.poll()) != null) task.run();
+  }
+
+  private void schedule(long time, Runnable action) {
+    timeline.add(new Scheduled(time, sequence++, action));
+  }
+
+  // Months ordered by popularity: the start month, then alternating between the following and the preceding months
+  private Month[] rankMonths() {
+    var current = workload.start;
+    var months = new Month[Math.max(workload.months, 1)];
+    try {
+      for (int rank = 0; rank < months.length; rank++) {
+        var offset = rank % 2 == 1 ? (rank + 1) / 2 : -(rank / 2);
+        months[rank] = current.plus(offset);
+      }
+    } catch (InvalidMonthException error) {
+      throw new IllegalStateException(error);
+    }
+    return months;
+  }
+
+  // Cumulative distribution of the Zipf distribution over "count" ranks
+  private double[] zipf(int count) {
+    var cumulative = new double[count];
+    var sum = 0.0;
+    for (int rank = 0; rank < count; rank++) {
+      sum += 1 / Math.pow(rank + 1, workload.zipfExponent);
+      cumulative[rank] = sum;
+    }
+    for (int rank = 0; rank < count; rank++) cumulative[rank] /= sum;
+    return cumulative;
+  }
+
+  private int sample(double[] cumulative) {
+    var index = Arrays.binarySearch(cumulative, traceRandom.nextDouble());
+    return Math.min(index >= 0 ? index : -index - 1, cumulative.length - 1);
+  }
+}
@@ -0,0 +1,52 @@
+package wtf.lua.rockblock.calendarserver;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * StageEvent is the Java Flight Recorder event that is recorded for every stage of a {@link Trace}.
+ * Events are only recorded while a flight recording with this event enabled is running, otherwise they cost next to nothing.
+ *
+ * <p>
+ * Copyright (C) 2020 Lua MacDougall
+ * <br/><br/>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <br/><br/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * <br/><br/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see &lt;https://www.gnu.org/licenses/&gt;.
+ * </p>
+ *
+ * @author Lua MacDougall &lt;luawhat@gmail.com&gt;
+ */
+@Name("wtf.lua.rockblock.calendarserver.Stage")
+@Label("Calendar Server Stage")
+@Category("RockBlock CalendarServer")
+@Description("A stage of generating or serving a calendar month")
+@StackTrace(false)
+public final class StageEvent extends Event {
+  /** What the stage worked on, usually a month (YYYY-MM). */
+  @Label("Subject")
+  public String subject;
+
+  /** Name of the stage, see {@link Trace}. */
+  @Label("Stage")
+  public String stage;
+
+  /** Time spent in this stage, shorter than the event's duration if the stage is interleaved with another one. */
+  @Label("Time")
+  @Timespan(Timespan.NANOSECONDS)
+  public long time;
+}
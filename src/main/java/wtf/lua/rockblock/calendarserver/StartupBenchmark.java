@@ -0,0 +1,118 @@
+package wtf.lua.rockblock.calendarserver;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * StartupBenchmark measures the time from launching a server JVM until it has served its first request for a month.
+ * Servers are launched with the same JVM options as the benchmark itself (for example "-XX:SharedArchiveFile"), so running the
+ * benchmark with and without an option shows how much it improves startup.
+ *
+ * <p>
+ * Copyright (C) 2020 Lua MacDougall
+ * <br/><br/>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <br/><br/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * <br/><br/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see &lt;https://www.gnu.org/licenses/&gt;.
+ * </p>
+ *
+ * @author Lua MacDougall &lt;luawhat@gmail.com&gt;
+ */
+public final class StartupBenchmark {
+  // How long a server may take to serve its first request before the run fails
+  private static final long timeout = 60000;
+  // How often to try the first request while the server is starting
+  private static final long pollInterval = 5;
+
+  // JVM options that would make every server write an archive (or list) instead of using it
+  private static final List<String> trainingOptions = List.of(
+    "-XX:ArchiveClassesAtExit",
+    "-XX:DumpLoadedClassList",
+    "-Xshare:dump"
+  );
+
+  private final List<String> command;
+  private final HttpClient httpClient;
+
+  /**
+   * Create a new StartupBenchmark instance that launches servers with this JVM's executable, class path and options.
+   */
+  public StartupBenchmark() {
+    command = new ArrayList<>();
+    command.add(ProcessHandle.current().info().command().orElse(
+      Paths.get(System.getProperty("java.home"), "bin", "java").toString()
+    ));
+    for (var option : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+      if (trainingOptions.stream().noneMatch(option::startsWith)) command.add(option);
+    }
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add(Application.class.getName());
+
+    httpClient = HttpClient
+      .newBuilder()
+      .version(HttpClient.Version.HTTP_1_1)
+      .connectTimeout(Duration.ofSeconds(1))
+      .build();
+  }
+
+  /**
+   * Launch a server, wait until it has served a month and stop it again.
+   * @param configPath Path to the config file for the server.
+   * @param port Port that the config file tells the server to listen on.
+   * @param month Month to request.
+   * @return Time in nanoseconds from launching the server until the first successful response was received.
+   * @throws IOException If the server can't be launched, exits early or doesn't respond in time.
+   * @throws InterruptedException If the calling thread is interrupted.
+   */
+  public long measure(Path configPath, int port, Month month) throws IOException, InterruptedException {
+    var request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + port + "/" + month.expression)).build();
+
+    var arguments = new ArrayList<>(command);
+    arguments.add(configPath.toString());
+    var processBuilder = new ProcessBuilder(arguments)
+      .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+      .redirectError(ProcessBuilder.Redirect.DISCARD);
+
+    var start = System.nanoTime();
+    var process = processBuilder.start();
+    try {
+      var deadline = start + TimeUnit.MILLISECONDS.toNanos(timeout);
+      while (true) {
+        try {
+          if (httpClient.send(request, BodyHandlers.discarding()).statusCode() == 200) return System.nanoTime() - start;
+        } catch (ConnectException error) {
+          // Not listening yet
+        }
+        if (!process.isAlive())
+          throw new IOException(String.format("The server exited with status %d", process.exitValue()));
+        if (System.nanoTime() > deadline)
+          throw new IOException("The server did not serve the first request in time");
+        Thread.sleep(pollInterval);
+      }
+    } finally {
+      process.destroy();
+      if (!process.waitFor(10, TimeUnit.SECONDS)) process.destroyForcibly().waitFor();
+    }
+  }
+}
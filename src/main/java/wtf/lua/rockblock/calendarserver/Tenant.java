@@ -0,0 +1,132 @@
+package wtf.lua.rockblock.calendarserver;
+
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.regex.Pattern;
+
+/**
+ * Tenant is one of the calendars served by this server, with its own calendar source, configuration and cache.
+ * Tenants share the event loops, executors and HTTP client, the default tenant is served without a path prefix
+ * and every other tenant is served under "/&lt;name&gt;/", see {@link Config#tenants}.
+ *
+ * <p>
+ * Copyright (C) 2020 Lua MacDougall
+ * <br/><br/>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <br/><br/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * <br/><br/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see &lt;https://www.gnu.org/licenses/&gt;.
+ * </p>
+ *
+ * @author Lua MacDougall &lt;luawhat@gmail.com&gt;
+ */
+public final class Tenant {
+  // Tenant names are used as path prefixes, so they can't look like a month or clash with the other paths
+  private static final Pattern namePattern = Pattern.compile("^[A-Za-z][A-Za-z0-9_-]*$");
+  private static final Set<String> reservedNames = Set.of("events", "batch", "ready", "admin");
+
+  /** Name of this tenant (its path prefix), or "null" for the default tenant. */
+  public final String name;
+  /** CalendarJsonProvider with this tenant's cache. */
+  public final CalendarJsonProvider calendarJsonProvider;
+  /** EventStreamBroadcaster for this tenant's live updates. */
+  public final EventStreamBroadcaster eventStreamBroadcaster;
+  /** CacheWarmer that warms up this tenant's cache. */
+  public final CacheWarmer cacheWarmer;
+
+  private volatile Config config;
+  private final PrerenderIndex prerenderIndex;
+
+  /**
+   * Create a new Tenant instance.
+   * @param name {@link Tenant#name}
+   * @param config Configuration of this tenant.
+   * @param calendarJsonProvider {@link Tenant#calendarJsonProvider}
+   * @param eventStreamBroadcaster {@link Tenant#eventStreamBroadcaster}
+   * @param cacheWarmer {@link Tenant#cacheWarmer}
+   * @param executor Executor to list this tenant's pre-render directory on, see {@link PrerenderIndex}.
+   */
+  public Tenant(
+    String name,
+    Config config,
+    CalendarJsonProvider calendarJsonProvider,
+    EventStreamBroadcaster eventStreamBroadcaster,
+    CacheWarmer cacheWarmer,
+    Executor executor
+  ) {
+    this.name = name;
+    this.config = config;
+    this.calendarJsonProvider = calendarJsonProvider;
+    this.eventStreamBroadcaster = eventStreamBroadcaster;
+    this.cacheWarmer = cacheWarmer;
+    prerenderIndex = new PrerenderIndex(executor, getPrerenderDirectory());
+  }
+
+  /**
+   * Get the current configuration of this tenant.
+   * @return Config instance.
+   */
+  public Config getConfig() {
+    return config;
+  }
+
+  /**
+   * Get the directory this tenant's pre-rendered months are stored in, see {@link Config#prerenderDirectory}.
+   * Named tenants use a subdirectory (named after the tenant), so tenants that share a "prerenderDirectory" don't overwrite each other's files.
+   * @return Directory path, or "null" if pre-rendering is disabled for this tenant.
+   */
+  public String getPrerenderDirectory() {
+    return getPrerenderDirectory(name, config);
+  }
+
+  /**
+   * Check if a month has been pre-rendered for this tenant, without touching the disk, see {@link PrerenderIndex#contains}.
+   * @param month Month to check.
+   * @param gzip Check for the gzip compressed copy instead of the plain one.
+   * @return Boolean indicating if the file of "month" was found in this tenant's pre-render directory.
+   */
+  public boolean isPrerendered(Month month, boolean gzip) {
+    return prerenderIndex.contains(month, gzip);
+  }
+
+  /**
+   * Get the directory a tenant's pre-rendered months are stored in, see {@link Tenant#getPrerenderDirectory()}.
+   * @param name Name of the tenant, or "null" for the default tenant.
+   * @param config Configuration of the tenant.
+   * @return Directory path, or "null" if pre-rendering is disabled for the tenant.
+   */
+  public static String getPrerenderDirectory(String name, Config config) {
+    var directory = config.prerenderDirectory;
+    if (directory == null || name == null) return directory;
+    return Path.of(directory, name).toString();
+  }
+
+  /**
+   * Check if a string can be used as the name of a tenant.
+   * @param name Name to check.
+   * @return Boolean indicating if "name" is a valid path prefix that doesn't clash with months or other paths.
+   */
+  public static boolean isValidName(String name) {
+    return namePattern.matcher(name).matches() && !reservedNames.contains(name);
+  }
+
+  /**
+   * Apply a reloaded configuration to this tenant, see {@link CalendarJsonProvider#reconfigure} and {@link EventStreamBroadcaster#reconfigure}.
+   * @param newConfig New configuration of this tenant.
+   */
+  public void reconfigure(Config newConfig) {
+    config = newConfig;
+    calendarJsonProvider.reconfigure(newConfig);
+    eventStreamBroadcaster.reconfigure(newConfig);
+    prerenderIndex.rescan(getPrerenderDirectory());
+  }
+}
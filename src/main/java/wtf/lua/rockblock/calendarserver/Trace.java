@@ -0,0 +1,245 @@
+package wtf.lua.rockblock.calendarserver;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import jdk.jfr.EventType;
+
+/**
+ * Trace records how long each stage of generating or serving a calendar month took.
+ * Every stage is recorded as a {@link StageEvent} for Java Flight Recorder and can be sent to clients as a "Server-Timing" header.
+ * Stages that are interleaved with others (like waiting for the upstream body while parsing it) are accumulated with {@link Trace#add}
+ * and subtracted from the stage that encloses them, so the stages never overlap.
+ *
+ * <p>
+ * Copyright (C) 2020 Lua MacDougall
+ * <br/><br/>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <br/><br/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * <br/><br/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see &lt;https://www.gnu.org/licenses/&gt;.
+ * </p>
+ *
+ * @author Lua MacDougall &lt;luawhat@gmail.com&gt;
+ */
+public final class Trace {
+  /**
+   * Span is a stage of a {@link Trace} that is in progress.
+   */
+  public final class Span {
+    private final String stage;
+    private final String[] interleaved;
+    private final long start;
+    private final long[] interleavedStart;
+
+    private final StageEvent event;
+    private final StageEvent[] interleavedEvents;
+
+    // Span of a disabled trace, it records nothing
+    private Span() {
+      stage = null;
+      interleaved = null;
+      start = 0;
+      interleavedStart = null;
+      event = null;
+      interleavedEvents = null;
+    }
+
+    private Span(String stage, String[] interleaved) {
+      this.stage = stage;
+      this.interleaved = interleaved;
+
+      // Stages are listed in the order they began
+      add(stage, 0);
+      event = begin();
+      interleavedEvents = new StageEvent[interleaved.length];
+      interleavedStart = new long[interleaved.length];
+      for (int i = 0; i < interleaved.length; i++) {
+        interleavedEvents[i] = begin();
+        interleavedStart[i] = get(interleaved[i]);
+      }
+
+      start = System.nanoTime();
+    }
+
+    /**
+     * End this stage, recording how long it took (minus the time of its interleaved stages).
+     */
+    public void end() {
+      if (stage == null) return;
+      var elapsed = System.nanoTime() - start;
+      for (int i = 0; i < interleaved.length; i++) {
+        var time = get(interleaved[i]) - interleavedStart[i];
+        elapsed -= time;
+        commit(interleavedEvents[i], interleaved[i], time);
+      }
+      add(stage, Math.max(elapsed, 0));
+      commit(event, stage, Math.max(elapsed, 0));
+    }
+
+    private StageEvent begin() {
+      var event = new StageEvent();
+      event.begin();
+      return event;
+    }
+
+    private void commit(StageEvent event, String stage, long time) {
+      event.end();
+      if (!event.shouldCommit()) return;
+      event.subject = subject;
+      event.stage = stage;
+      event.time = time;
+      event.commit();
+    }
+  }
+
+  // Type of the JFR events that stages are recorded as, to check if a recording wants them
+  private static final EventType stageEventType = EventType.getEventType(StageEvent.class);
+
+  /** Trace that records nothing, for work whose stages nobody reads. */
+  public static final Trace disabled = new Trace();
+
+  private final String subject;
+  private final long created;
+
+  // Stage name -> accumulated nanoseconds, in the order the stages were first recorded ("null" if this trace is disabled)
+  private final Map<String, Long> stages;
+  private final Span disabledSpan;
+
+  /**
+   * Create a new Trace instance.
+   * @param subject What is being traced, usually a month (YYYY-MM).
+   */
+  public Trace(String subject) {
+    this.subject = subject;
+    created = System.nanoTime();
+    stages = new LinkedHashMap<>();
+    disabledSpan = null;
+  }
+
+  private Trace() {
+    subject = null;
+    created = 0;
+    stages = null;
+    disabledSpan = new Span();
+  }
+
+  /**
+   * Create a new Trace instance if its stages will be read, either in a "Server-Timing" header or by a running JFR recording.
+   * @param subject What is being traced, usually a month (YYYY-MM).
+   * @param serverTiming Will the stages be sent in a "Server-Timing" header? See {@link Config#serverTiming}.
+   * @return New Trace instance, or {@link Trace#disabled} if nothing would read it.
+   */
+  public static Trace create(String subject, boolean serverTiming) {
+    return serverTiming || stageEventType.isEnabled() ? new Trace(subject) : disabled;
+  }
+
+  /**
+   * Get the time that passed since this trace was created.
+   * @return Elapsed time (in nanoseconds), "0" if this trace is disabled.
+   */
+  public long getElapsed() {
+    if (stages == null) return 0;
+    return System.nanoTime() - created;
+  }
+
+  /**
+   * Begin a stage.
+   * @param stage Name of the stage, must be a valid "Server-Timing" metric name (a token, ex: "parse").
+   * @param interleaved Names of stages that are recorded with {@link Trace#add} while this stage is in progress.
+   * @return Span that must be ended once the stage is done.
+   */
+  public Span begin(String stage, String... interleaved) {
+    if (stages == null) return disabledSpan;
+    return new Span(stage, interleaved);
+  }
+
+  /**
+   * Add time to a stage, for stages that are interleaved with another one.
+   * @param stage Name of the stage.
+   * @param nanos Time spent in the stage (in nanoseconds).
+   */
+  public void add(String stage, long nanos) {
+    if (stages == null) return;
+    synchronized (stages) {
+      stages.merge(stage, nanos, Long::sum);
+    }
+  }
+
+  /**
+   * Get the time recorded for a stage.
+   * @param stage Name of the stage.
+   * @return Time spent in the stage (in nanoseconds), "0" if it hasn't been recorded.
+   */
+  public long get(String stage) {
+    if (stages == null) return 0;
+    synchronized (stages) {
+      return stages.getOrDefault(stage, 0L);
+    }
+  }
+
+  /**
+   * Wrap an {@link InputStream} so that the time spent reading from it is added to a stage.
+   * @param input Stream to wrap.
+   * @param stage Name of the stage.
+   * @return Wrapped stream.
+   */
+  public InputStream time(InputStream input, String stage) {
+    if (stages == null) return input;
+    return new FilterInputStream(input) {
+      @Override
+      public int read() throws IOException {
+        var start = System.nanoTime();
+        try { return super.read(); }
+        finally { add(stage, System.nanoTime() - start); }
+      }
+
+      @Override
+      public int read(byte[] buffer, int offset, int length) throws IOException {
+        var start = System.nanoTime();
+        try { return super.read(buffer, offset, length); }
+        finally { add(stage, System.nanoTime() - start); }
+      }
+    };
+  }
+
+  /**
+   * Append the stages of this trace to the value of a "Server-Timing" header, ex: "connect;dur=12.3, parse;dur=45.6".
+   * @param header Header value to append to.
+   * @return "header"
+   */
+  public StringBuilder appendServerTiming(StringBuilder header) {
+    if (stages == null) return header;
+    synchronized (stages) {
+      for (var stage : stages.entrySet()) appendServerTiming(header, stage.getKey(), stage.getValue());
+    }
+    return header;
+  }
+
+  /**
+   * Append a single metric to the value of a "Server-Timing" header.
+   * @param header Header value to append to.
+   * @param name Name of the metric.
+   * @param nanos Duration of the metric (in nanoseconds).
+   * @return "header"
+   */
+  public static StringBuilder appendServerTiming(StringBuilder header, String name, long nanos) {
+    if (header.length() > 0) header.append(", ");
+    return header
+      .append(name)
+      .append(";dur=")
+      .append(String.format(Locale.ROOT, "%.1f", nanos / 1e6));
+  }
+}
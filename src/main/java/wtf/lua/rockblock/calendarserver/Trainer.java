@@ -0,0 +1,162 @@
+package wtf.lua.rockblock.calendarserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Trainer sends a representative workload to a running server, so that a training run loads (and, with
+ * "-XX:ArchiveClassesAtExit", archives) the classes used for serving before the JVM exits.
+ * Every tenant is asked for months in every {@link BodyFormat}, with and without "fields", from the cache and from the calendar source,
+ * as well as batches, event streams and invalid requests.
+ *
+ * <p>
+ * Copyright (C) 2020 Lua MacDougall
+ * <br/><br/>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <br/><br/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * <br/><br/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see &lt;https://www.gnu.org/licenses/&gt;.
+ * </p>
+ *
+ * @author Lua MacDougall &lt;luawhat@gmail.com&gt;
+ */
+public final class Trainer {
+  private static final Logger log = LoggerFactory.getLogger(Trainer.class);
+
+  // How long to wait for the server to become ready
+  private static final long readyTimeout = 60000;
+
+  private final HttpClient httpClient;
+  private final String baseUri;
+  // Path prefix of every tenant ("" for the default tenant)
+  private final List<String> prefixes;
+
+  private int requestCount;
+
+  /**
+   * Create a new Trainer instance.
+   * @param port Port that the server is listening on (on the loopback interface).
+   * @param tenants Names of the server's tenants.
+   */
+  public Trainer(int port, Collection<String> tenants) {
+    httpClient = HttpClient
+      .newBuilder()
+      .version(HttpClient.Version.HTTP_1_1)
+      .connectTimeout(Duration.ofSeconds(5))
+      .build();
+    baseUri = "http://127.0.0.1:" + port;
+
+    prefixes = new ArrayList<>();
+    prefixes.add("");
+    for (var tenant : tenants) {
+      if (Tenant.isValidName(tenant)) prefixes.add("/" + tenant);
+    }
+  }
+
+  /**
+   * Wait for the server to become ready, then send the workload.
+   * @param rounds How many times to send the workload, later rounds request different uncached months.
+   * @throws IOException If the server doesn't become ready or a request fails.
+   * @throws InterruptedException If the calling thread is interrupted.
+   */
+  public void run(int rounds) throws IOException, InterruptedException {
+    awaitReady();
+
+    var current = Month.current();
+    for (int round = 0; round < rounds; round++) {
+      for (var prefix : prefixes) {
+        List<Month> months;
+        try {
+          months = List.of(current.plus(-1), current, current.plus(1), current.plus(12 + round));
+        } catch (InvalidMonthException error) {
+          throw new IllegalStateException(error);
+        }
+
+        for (var month : months) {
+          for (var format : BodyFormat.values()) {
+            send(prefix + "/" + month.expression, format.contentType, 200);
+            send(prefix + "/" + month.expression + "?fields=uid,start,end,summary,categories", format.contentType, 200);
+          }
+        }
+
+        var expressions = new ArrayList<String>();
+        for (var month : months) expressions.add(month.expression);
+        send(prefix + "/batch?months=" + String.join(",", expressions), null, 200);
+        send(prefix + "/batch?months=" + String.join(",", expressions) + "&fields=uid,summary", null, 200);
+        stream(prefix + "/events?months=" + expressions.get(1));
+
+        send(prefix + "/ready", null, 200);
+        send(prefix + "/" + current.year + "-13", null, 400);
+        send(prefix + "/" + current.expression + "?fields=nope", null, 400);
+        send(prefix + "/training", null, 400);
+      }
+    }
+
+    log.info("Sent {} training requests", requestCount);
+  }
+
+  private void awaitReady() throws IOException, InterruptedException {
+    var request = HttpRequest.newBuilder(URI.create(baseUri + "/ready")).build();
+    var deadline = System.currentTimeMillis() + readyTimeout;
+    while (true) {
+      try {
+        if (httpClient.send(request, BodyHandlers.discarding()).statusCode() == 200) return;
+      } catch (ConnectException error) {
+        // Not listening yet
+      }
+      if (System.currentTimeMillis() > deadline)
+        throw new IOException("The server did not become ready in time");
+      Thread.sleep(50);
+    }
+  }
+
+  private void send(String path, String accept, int expectedStatus) throws IOException, InterruptedException {
+    var builder = HttpRequest.newBuilder(URI.create(baseUri + path)).header("Accept-Encoding", "gzip");
+    if (accept != null) builder.header("Accept", accept);
+    var response = httpClient.send(builder.build(), BodyHandlers.ofByteArray());
+    requestCount++;
+    if (response.statusCode() != expectedStatus)
+      log.warn("Training request for {} returned {} instead of {}", path, response.statusCode(), expectedStatus);
+  }
+
+  // Subscribe to an event stream and hang up after the first update
+  private void stream(String path) throws IOException, InterruptedException {
+    var request = HttpRequest.newBuilder(URI.create(baseUri + path)).build();
+    var response = httpClient.send(request, BodyHandlers.ofInputStream());
+    requestCount++;
+    try (var body = response.body()) {
+      if (response.statusCode() != 200 || !readFrame(body))
+        log.warn("Training event stream {} did not send an update", path);
+    }
+  }
+
+  private static boolean readFrame(InputStream input) throws IOException {
+    int previous = -1;
+    int current;
+    while ((current = input.read()) != -1) {
+      if (current == '\n' && previous == '\n') return true;
+      previous = current;
+    }
+    return false;
+  }
+}
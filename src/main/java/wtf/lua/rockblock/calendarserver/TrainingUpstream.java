@@ -0,0 +1,205 @@
+package wtf.lua.rockblock.calendarserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * TrainingUpstream is a stand-in calendar source on the loopback interface, used by {@link Trainer} and {@link StartupBenchmark}
+ * so that training runs and benchmarks neither depend on nor load a real calendar source.
+ * Every month gets a synthetic iCalendar feed with timed, all-day and recurring events, gzip compressed if the client accepts it.
+ *
+ * <p>
+ * Copyright (C) 2020 Lua MacDougall
+ * <br/><br/>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <br/><br/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * <br/><br/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see &lt;https://www.gnu.org/licenses/&gt;.
+ * </p>
+ *
+ * @author Lua MacDougall &lt;luawhat@gmail.com&gt;
+ */
+public final class TrainingUpstream implements AutoCloseable {
+  // Number of timed events generated for each month (on top of the all-day and recurring events)
+  private static final int eventsPerMonth = 48;
+
+  private final HttpServer server;
+
+  /**
+   * Create a new TrainingUpstream instance and start serving on an ephemeral loopback port.
+   * @throws IOException If the server can't be bound.
+   */
+  public TrainingUpstream() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/", this::handle);
+    server.setExecutor(Executors.newCachedThreadPool(runnable -> {
+      var thread = new Thread(runnable, "training-upstream");
+      thread.setDaemon(true);
+      return thread;
+    }));
+    server.start();
+  }
+
+  /**
+   * Get the URL template (see {@link Config#urlTemplate}) that points to this upstream.
+   * @return URL template string.
+   */
+  public String getUrlTemplate() {
+    var address = server.getAddress();
+    return String.format("http://%s:%d/$$.ics", address.getHostString(), address.getPort());
+  }
+
+  /**
+   * Write a copy of a config file that serves on another port, with the default tenant and every named tenant pointed at this upstream.
+   * Cluster mode is turned off, every other option is kept so that the same code paths are used.
+   * @param configPath Path to the config file to copy, the default config is used if it doesn't exist.
+   * @param port Port to serve on.
+   * @return Path to the written config file (a temporary file that is deleted when the JVM exits).
+   * @throws IOException If the config file can't be read or the copy can't be written.
+   */
+  public Path writeConfig(String configPath, int port) throws IOException {
+    var mapper = BodyFormat.JSON.getMapper();
+    var base = Paths.get(configPath);
+    var node = Files.exists(base) ? mapper.readTree(base.toFile()) : mapper.createObjectNode();
+    if (!node.isObject()) throw new IOException("The config file does not contain a JSON object");
+    var config = (ObjectNode)node;
+
+    config.put("port", port);
+    config.put("urlTemplate", getUrlTemplate());
+    config.remove("clusterPeers");
+    config.remove("clusterSelf");
+    var tenants = config.get("tenants");
+    if (tenants != null && tenants.isObject()) {
+      for (var tenant : tenants) {
+        if (tenant.isObject()) ((ObjectNode)tenant).put("urlTemplate", getUrlTemplate());
+      }
+    }
+
+    var path = Files.createTempFile("calendarserver-training", ".json");
+    path.toFile().deleteOnExit();
+    mapper.writeValue(path.toFile(), config);
+    return path;
+  }
+
+  /**
+   * Stop serving.
+   */
+  @Override
+  public void close() {
+    server.stop(0);
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    // HttpExchange is only AutoCloseable on newer JDKs
+    try {
+      var path = exchange.getRequestURI().getPath();
+      Month month;
+      try {
+        if (!path.startsWith("/") || !path.endsWith(".ics")) throw new InvalidMonthException("Not a feed");
+        month = Month.parse(path.substring(1, path.length() - 4));
+      } catch (InvalidMonthException error) {
+        exchange.sendResponseHeaders(404, -1);
+        return;
+      }
+
+      var body = generateFeed(month, 0).getBytes(StandardCharsets.UTF_8);
+      var acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+      if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+        body = gzip(body);
+        exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+      }
+      exchange.getResponseHeaders().set("Content-Type", "text/calendar; charset=utf-8");
+      exchange.sendResponseHeaders(200, body.length);
+      exchange.getResponseBody().write(body);
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * Generate the synthetic iCalendar feed of a month.
+   * @param month Month to generate the feed for.
+   * @param revision Revision of the feed, feeds with different revisions have different content.
+   * @return iCalendar data.
+   */
+  public static String generateFeed(Month month, int revision) {
+    var prefix = String.format("%04d%02d", month.year, month.month);
+    var feed = new StringBuilder()
+      .append("BEGIN:VCALENDAR\r\n")
+      .append("VERSION:2.0\r\n")
+      .append("PRODID:-//RockBlock CalendarServer//Training//EN\r\n");
+
+    for (int i = 0; i < eventsPerMonth; i++) {
+      var day = 1 + i % 28;
+      var hour = 8 + i % 10;
+      feed
+        .append("BEGIN:VEVENT\r\n")
+        .append(String.format("UID:training-%s-%d@rockblock\r\n", month.expression, i))
+        .append(String.format("DTSTAMP:%s01T000000Z\r\n", prefix))
+        .append(String.format("CREATED:%s01T000000Z\r\n", prefix))
+        .append(String.format("LAST-MODIFIED:%s01T120000Z\r\n", prefix))
+        .append(String.format("DTSTART:%s%02dT%02d0000Z\r\n", prefix, day, hour))
+        .append(String.format("DTEND:%s%02dT%02d3000Z\r\n", prefix, day, hour + 1))
+        .append(String.format("SUMMARY:%sTraining event %d%s\r\n", i % 8 == 0 ? "[Hidden] " : "", i, i == 0 && revision > 0 ? " (revision " + revision + ")" : ""))
+        .append(String.format("DESCRIPTION:Event %d of %s\\, generated for training.\r\n", i, month.expression))
+        .append(String.format("CATEGORIES:Training,Category %d\r\n", i % 5))
+        .append(String.format("LOCATION:Room %d\r\n", i % 7))
+        .append(String.format("URL:https://example.com/events/%s/%d\r\n", month.expression, i))
+        .append("END:VEVENT\r\n");
+    }
+
+    feed
+      .append("BEGIN:VEVENT\r\n")
+      .append(String.format("UID:training-%s-all-day@rockblock\r\n", month.expression))
+      .append(String.format("DTSTAMP:%s01T000000Z\r\n", prefix))
+      .append(String.format("DTSTART;VALUE=DATE:%s15\r\n", prefix))
+      .append(String.format("DTEND;VALUE=DATE:%s16\r\n", prefix))
+      .append("SUMMARY:Training all-day event\r\n")
+      .append("END:VEVENT\r\n");
+
+    // The same recurring event appears in every month's feed
+    feed
+      .append("BEGIN:VEVENT\r\n")
+      .append("UID:training-weekly@rockblock\r\n")
+      .append(String.format("DTSTAMP:%s01T000000Z\r\n", prefix))
+      .append(String.format("DTSTART:%s01T170000Z\r\n", prefix))
+      .append(String.format("DTEND:%s01T180000Z\r\n", prefix))
+      .append("RRULE:FREQ=WEEKLY;COUNT=5\r\n")
+      .append("SUMMARY:Training weekly event\r\n")
+      .append("CATEGORIES:Training\r\n")
+      .append("END:VEVENT\r\n");
+
+    return feed.append("END:VCALENDAR\r\n").toString();
+  }
+
+  private static byte[] gzip(byte[] bytes) {
+    var output = new ByteArrayOutputStream(bytes.length / 4);
+    try (var gzip = new GZIPOutputStream(output)) {
+      gzip.write(bytes);
+    } catch (IOException error) {
+      throw new UncheckedIOException(error);
+    }
+    return output.toByteArray();
+  }
+}
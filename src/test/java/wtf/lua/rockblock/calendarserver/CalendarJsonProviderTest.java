@@ -0,0 +1,59 @@
+package wtf.lua.rockblock.calendarserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests how {@link CalendarJsonProvider} caches the results of updates.
+ *
+ * <p>
+ * Copyright (C) 2020 Lua MacDougall
+ * <br/><br/>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <br/><br/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * <br/><br/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see &lt;https://www.gnu.org/licenses/&gt;.
+ * </p>
+ *
+ * @author Lua MacDougall &lt;luawhat@gmail.com&gt;
+ */
+public final class CalendarJsonProviderTest {
+  private static final long timeout = 5000;
+
+  @Test
+  public void releasesBodyOfInvalidatedUpdate() throws Exception {
+    var month = Month.parse("2024-01");
+    var downloader = new PendingDownloader(timeout);
+    // Everything runs on the calling thread, so every continuation has run once the download completes
+    var calendarJsonProvider = new CalendarJsonProvider(Runnable::run, Config.defaultConfig, downloader, null);
+
+    // Invalidating the month while it is still being downloaded
+    var pending = calendarJsonProvider.request(month);
+    assertFalse(pending.isDone());
+    calendarJsonProvider.invalidate(month);
+
+    var feed = TrainingUpstream.generateFeed(month, 0).getBytes(StandardCharsets.UTF_8);
+    downloader.download.complete(new ByteArrayInputStream(feed));
+
+    var body = pending.get(timeout, TimeUnit.MILLISECONDS);
+    body.release();
+
+    // The update's result isn't cached, so nothing holds on to the body
+    assertFalse(calendarJsonProvider.hasEntry(month));
+    assertEquals(0, body.refCnt());
+  }
+}
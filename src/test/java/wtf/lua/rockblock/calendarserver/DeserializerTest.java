@@ -0,0 +1,74 @@
+package wtf.lua.rockblock.calendarserver;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that {@link Deserializer} closes the streams it reads.
+ *
+ * <p>
+ * Copyright (C) 2020 Lua MacDougall
+ * <br/><br/>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <br/><br/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * <br/><br/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see &lt;https://www.gnu.org/licenses/&gt;.
+ * </p>
+ *
+ * @author Lua MacDougall &lt;luawhat@gmail.com&gt;
+ */
+public final class DeserializerTest {
+  private static final long timeout = 5000;
+
+  @Test
+  public void closesInputWithoutChunking() throws Exception {
+    assertClosed(0);
+  }
+
+  @Test
+  public void closesInputWithChunking() throws Exception {
+    assertClosed(1);
+  }
+
+  private static void assertClosed(int chunkEvents) throws Exception {
+    var month = Month.parse("2024-01");
+    var feed = TrainingUpstream.generateFeed(month, 0).getBytes(StandardCharsets.UTF_8);
+
+    var compressed = new ByteArrayOutputStream();
+    try (var output = new DeflaterOutputStream(compressed)) {
+      output.write(feed);
+    }
+
+    var closed = new boolean[1];
+    var input = new InflaterInputStream(new ByteArrayInputStream(compressed.toByteArray())) {
+      @Override
+      public void close() throws IOException {
+        closed[0] = true;
+        super.close();
+      }
+    };
+
+    var deserializer = new Deserializer(ForkJoinPool.commonPool(), null, 1000, chunkEvents);
+    var events = deserializer.deserialize(input, month).get(timeout, TimeUnit.MILLISECONDS);
+    assertTrue(events.length > 0);
+    assertTrue(closed[0], "Input stream was not closed");
+  }
+}
@@ -0,0 +1,154 @@
+package wtf.lua.rockblock.calendarserver;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests {@link Downloader} against a local stub upstream serving compressed bodies over HTTP/1.1.
+ *
+ * <p>
+ * Copyright (C) 2020 Lua MacDougall
+ * <br/><br/>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <br/><br/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * <br/><br/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see &lt;https://www.gnu.org/licenses/&gt;.
+ * </p>
+ *
+ * @author Lua MacDougall &lt;luawhat@gmail.com&gt;
+ */
+public final class DownloaderTest {
+  private static final long timeout = 5000;
+
+  private static final byte[] body = String.join("\r\n",
+    "BEGIN:VCALENDAR",
+    "VERSION:2.0",
+    "BEGIN:VEVENT",
+    "UID:stub@localhost",
+    "DTSTART:20240105T100000Z",
+    "SUMMARY:Stub event",
+    "END:VEVENT",
+    "END:VCALENDAR",
+    ""
+  ).getBytes(StandardCharsets.UTF_8);
+
+  private HttpServer server;
+  // "Upgrade" header of every request the stub received, "null" for requests without one
+  private List<String> upgrades;
+
+  @BeforeEach
+  public void startServer() throws IOException {
+    upgrades = Collections.synchronizedList(new ArrayList<>());
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/", this::handle);
+    server.start();
+  }
+
+  @AfterEach
+  public void stopServer() {
+    server.stop(0);
+  }
+
+  @Test
+  public void decodesIdentity() throws Exception {
+    assertArrayEquals(body, download("/identity", true, false));
+  }
+
+  @Test
+  public void decodesGzip() throws Exception {
+    assertArrayEquals(body, download("/gzip", true, false));
+  }
+
+  @Test
+  public void decodesZlibDeflate() throws Exception {
+    assertArrayEquals(body, download("/zlib", true, false));
+  }
+
+  @Test
+  public void decodesRawDeflate() throws Exception {
+    assertArrayEquals(body, download("/raw", true, false));
+  }
+
+  @Test
+  public void skipsCompressionIfDisabled() throws Exception {
+    // The stub only compresses when asked to
+    assertArrayEquals(body, download("/gzip", false, false));
+  }
+
+  @Test
+  public void fallsBackToHttp1() throws Exception {
+    // The stub only speaks HTTP/1.1 and ignores the upgrade to HTTP/2, the download has to succeed regardless
+    assertArrayEquals(body, download("/gzip", true, true));
+    assertEquals(List.of("h2c"), upgrades);
+  }
+
+  private byte[] download(String path, boolean compression, boolean http2) throws Exception {
+    var downloader = new Downloader(ForkJoinPool.commonPool(), timeout, http2, compression);
+    var uri = URI.create("http://127.0.0.1:" + server.getAddress().getPort() + path);
+    try (var input = downloader.download(uri, timeout).get()) {
+      return input.readAllBytes();
+    }
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      upgrades.add(exchange.getRequestHeaders().getFirst("Upgrade"));
+
+      var acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+      var path = exchange.getRequestURI().getPath();
+      var response = body;
+      if (acceptEncoding != null && !path.equals("/identity")) {
+        var encoding = path.equals("/gzip") ? "gzip" : "deflate";
+        response = compress(path);
+        exchange.getResponseHeaders().set("Content-Encoding", encoding);
+      }
+
+      exchange.sendResponseHeaders(200, response.length);
+      exchange.getResponseBody().write(response);
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private static byte[] compress(String path) throws IOException {
+    var output = new ByteArrayOutputStream();
+    var deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, path.equals("/raw"));
+    try (
+      var compressed = path.equals("/gzip") ? new GZIPOutputStream(output) : new DeflaterOutputStream(output, deflater)
+    ) {
+      compressed.write(body);
+    } finally {
+      deflater.end();
+    }
+    return output.toByteArray();
+  }
+}
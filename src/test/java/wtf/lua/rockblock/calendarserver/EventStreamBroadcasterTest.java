@@ -0,0 +1,83 @@
+package wtf.lua.rockblock.calendarserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+/**
+ * Tests that {@link EventStreamBroadcaster} releases every body it requests.
+ *
+ * <p>
+ * Copyright (C) 2020 Lua MacDougall
+ * <br/><br/>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <br/><br/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * <br/><br/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see &lt;https://www.gnu.org/licenses/&gt;.
+ * </p>
+ *
+ * @author Lua MacDougall &lt;luawhat@gmail.com&gt;
+ */
+public final class EventStreamBroadcasterTest {
+  private static final long timeout = 5000;
+
+  private EventLoopGroup group;
+
+  @BeforeEach
+  public void startGroup() {
+    group = new DefaultEventLoopGroup(1);
+  }
+
+  @AfterEach
+  public void stopGroup() {
+    group.shutdownGracefully(0, 0, TimeUnit.MILLISECONDS);
+  }
+
+  @Test
+  public void releasesBodiesOfPendingUpdates() throws Exception {
+    var month = Month.parse("2024-01");
+    var config = Config.defaultConfig;
+    var downloader = new PendingDownloader(timeout);
+    // Everything runs on the calling thread, so every continuation has run once the download completes
+    var calendarJsonProvider = new CalendarJsonProvider(Runnable::run, config, downloader, null);
+    var broadcaster = new EventStreamBroadcaster(group, config, calendarJsonProvider);
+
+    // Subscribing while the month is still being downloaded
+    var channel = new EmbeddedChannel();
+    broadcaster.subscribe(channel, List.of(month));
+    var pending = calendarJsonProvider.request(month);
+    assertFalse(pending.isDone());
+    pending.thenAccept(MonthBody::release);
+
+    var feed = TrainingUpstream.generateFeed(month, 0).getBytes(StandardCharsets.UTF_8);
+    downloader.download.complete(new ByteArrayInputStream(feed));
+
+    var body = calendarJsonProvider.request(month).get(timeout, TimeUnit.MILLISECONDS);
+    body.release();
+
+    // Only the cache holds on to the body
+    assertEquals(1, body.refCnt());
+
+    channel.finishAndReleaseAll();
+  }
+}
@@ -0,0 +1,45 @@
+package wtf.lua.rockblock.calendarserver;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * PendingDownloader answers every download with a CompletableFuture that the test completes, so tests decide when a download finishes.
+ *
+ * <p>
+ * Copyright (C) 2020 Lua MacDougall
+ * <br/><br/>
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <br/><br/>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * <br/><br/>
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see &lt;https://www.gnu.org/licenses/&gt;.
+ * </p>
+ *
+ * @author Lua MacDougall &lt;luawhat@gmail.com&gt;
+ */
+final class PendingDownloader extends Downloader {
+  /** CompletableFuture returned by every download, complete it to finish them. */
+  public final CompletableFuture<InputStream> download = new CompletableFuture<>();
+
+  /**
+   * Create a new PendingDownloader instance, running every continuation on the calling thread.
+   * @param timeout Connect timeout in milliseconds (never used).
+   */
+  public PendingDownloader(long timeout) {
+    super(Runnable::run, timeout, false, false);
+  }
+
+  @Override
+  public CompletableFuture<InputStream> download(URI uri, long retrieveTimeout, Trace trace, String... headers) {
+    return download;
+  }
+}